@@ -0,0 +1,335 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.game.Game;
+import edu.bu.cp.linalg.Matrix;
+import edu.bu.cp.nn.LossFunction;
+import edu.bu.cp.nn.Model;
+import edu.bu.cp.nn.Optimizer;
+import edu.bu.cp.utils.Pair;
+import edu.bu.cp.utils.Triple;
+
+
+import src.labs.cp.CompiledQFunction;
+import src.labs.cp.Main;
+import src.labs.cp.ModelSnapshot;
+import src.labs.cp.ReplayBuffer;
+import src.labs.cp.TrainingMetrics;
+import src.labs.cp.TransitionRingBuffer;
+
+
+/**
+ * Pipelined version of a train/update cycle. Instead of playing all of the training games and then updating
+ * the q-function, --numActors actor threads play training games (each with its own Game, rng and copy of the
+ * q-function) and publish their transitions through a lock-free TransitionRingBuffer, while the learner
+ * (the thread that calls runCycle) keeps moving those transitions into the ReplayBuffer and performing
+ * minibatch updates. Every --policyRefreshFreq updates the learner publishes a ModelSnapshot of its parameters,
+ * which the actors load before their next step.
+ *
+ * How many updates the learner fits in while the actors play depends only on how fast they play, so once they are
+ * done the learner keeps updating until it has made at least as many updates as the sequential path would
+ * (Main.getNumMinibatches: --numMinibatches, or --numUpdates epochs over the replay buffer).
+ *
+ * The ReplayBuffer, optimizer and q-function are only ever touched by the learner.
+ */
+public class ActorLearnerPipeline
+    extends Object
+{
+    public static final int RING_BUFFER_CAPACITY = 4096;
+    public static final int STAGING_SIZE = 256;
+
+    private class Actor
+        extends Object implements Runnable
+    {
+        private final int           actorIdx;
+        private final Game          game;
+        private final Random        rng;
+        private final Model         qFunction;
+        private final CompiledQFunction compiledQFunction;
+        private ModelSnapshot       loadedPolicy;
+
+        private final double[]      prevState;
+        private final double[]      nextState;
+
+        public Actor(int actorIdx,
+                     Random rng)
+        {
+            this.actorIdx = actorIdx;
+            this.rng = rng;
+            this.game = new Game(new Random(rng.nextLong()));
+            this.qFunction = Main.initQFunction();
+            this.compiledQFunction = CompiledQFunction.compile(this.qFunction);
+            this.loadedPolicy = null;
+            this.prevState = new double[VectorizedGame.STATE_DIM];
+            this.nextState = new double[VectorizedGame.STATE_DIM];
+        }
+
+        private void refreshPolicy()
+        {
+            ModelSnapshot latest = ActorLearnerPipeline.this.getPolicy();
+            if(latest != this.loadedPolicy)
+            {
+                latest.loadInto(this.qFunction);
+                this.compiledQFunction.refresh();
+                this.loadedPolicy = latest;
+            }
+        }
+
+        private int chooseAction(Matrix state)
+        {
+            double epsilon = Main.decayEpsilon(ActorLearnerPipeline.this.getStartEpsilon(),
+                                               ActorLearnerPipeline.this.getNumFinishedGames().get());
+            if(this.rng.nextDouble() < epsilon)
+            {
+                return this.rng.nextInt(2);
+            }
+
+            long start = Main.getMetrics().start();
+            int action = this.compiledQFunction.act(state);
+            Main.getMetrics().stop(TrainingMetrics.Phase.ACTION_SELECTION, start);
+            return action;
+        }
+
+        private void copyRow(Matrix src, double[] dst)
+        {
+            for(int cIdx = 0; cIdx < dst.length; ++cIdx)
+            {
+                dst[cIdx] = src.get(0, cIdx);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            ActorLearnerPipeline pipeline = ActorLearnerPipeline.this;
+            while(!pipeline.isStopped() && pipeline.getNumFinishedGames().get() < pipeline.getNumTrainingGames())
+            {
+                Matrix state = this.game.reset();
+                boolean isDone = false;
+                while(!isDone && !pipeline.isStopped())
+                {
+                    this.refreshPolicy();
+                    int action = this.chooseAction(state);
+
+                    long stepStart = Main.getMetrics().start();
+                    Triple<Matrix, Double, Boolean> obs = this.game.step(action);
+                    Main.getMetrics().stop(TrainingMetrics.Phase.ENV_STEP, stepStart);
+                    isDone = obs.getThird();
+
+                    copyRow(state, this.prevState);
+                    if(!isDone)
+                    {
+                        copyRow(obs.getFirst(), this.nextState);
+                    }
+
+                    // back off while the learner catches up
+                    while(!pipeline.getRingBuffer().offer(this.actorIdx, this.prevState, obs.getSecond(), this.nextState, isDone))
+                    {
+                        if(pipeline.isStopped())
+                        {
+                            return;
+                        }
+                        Thread.onSpinWait();
+                    }
+
+                    state = obs.getFirst();
+                }
+
+                if(isDone)
+                {
+                    pipeline.getNumFinishedGames().incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private final Model                 qFunction;
+    private final Model                 targetQFunction;
+    private final Optimizer             opt;
+    private final LossFunction          lf;
+    private final ReplayBuffer          rb;
+    private final Random                rng;
+    private final Namespace             ns;
+
+    private final TransitionRingBuffer  ringBuffer;
+    private volatile ModelSnapshot      policy;
+    private volatile boolean            isStopped;
+    private volatile double             startEpsilon;
+    private final AtomicLong            numFinishedGames;
+
+    // learner-side staging area used to move transitions from the ring buffer into the replay buffer
+    private final Matrix                stagingPrev;
+    private final double[]              stagingRewards;
+    private final Matrix                stagingNext;
+    private final boolean[]             stagingTerminal;
+    private final int[]                 stagingStreamIdxs;
+
+    public ActorLearnerPipeline(Model qFunction,
+                                Model targetQFunction,
+                                Optimizer opt,
+                                LossFunction lf,
+                                ReplayBuffer rb,
+                                Random rng,
+                                Namespace ns)
+    {
+        this.qFunction = qFunction;
+        this.targetQFunction = targetQFunction;
+        this.opt = opt;
+        this.lf = lf;
+        this.rb = rb;
+        this.rng = rng;
+        this.ns = ns;
+
+        this.ringBuffer = new TransitionRingBuffer(RING_BUFFER_CAPACITY, VectorizedGame.STATE_DIM);
+        this.policy = ModelSnapshot.of(qFunction);
+        this.isStopped = false;
+        this.startEpsilon = Main.getEpsilon();
+        this.numFinishedGames = new AtomicLong(0);
+
+        this.stagingPrev = Matrix.zeros(STAGING_SIZE, VectorizedGame.STATE_DIM);
+        this.stagingRewards = new double[STAGING_SIZE];
+        this.stagingNext = Matrix.zeros(STAGING_SIZE, VectorizedGame.STATE_DIM);
+        this.stagingTerminal = new boolean[STAGING_SIZE];
+        this.stagingStreamIdxs = new int[STAGING_SIZE];
+    }
+
+    private Model getQFunction() { return this.qFunction; }
+    private Model getTargetQFunction() { return this.targetQFunction; }
+    private Optimizer getOptimizer() { return this.opt; }
+    private LossFunction getLossFunction() { return this.lf; }
+    private ReplayBuffer getReplayBuffer() { return this.rb; }
+    private Random getRandom() { return this.rng; }
+    private Namespace getNamespace() { return this.ns; }
+
+    private TransitionRingBuffer getRingBuffer() { return this.ringBuffer; }
+    private ModelSnapshot getPolicy() { return this.policy; }
+    private boolean isStopped() { return this.isStopped; }
+    private double getStartEpsilon() { return this.startEpsilon; }
+    private AtomicLong getNumFinishedGames() { return this.numFinishedGames; }
+    private long getNumTrainingGames() { return this.getNamespace().<Long>get("numTrainingGames"); }
+
+    private void publishPolicy() { this.policy = ModelSnapshot.of(this.getQFunction()); }
+
+    private int drainRingBuffer()
+    {
+        return this.getRingBuffer().drainTo(this.getReplayBuffer(), this.stagingPrev, this.stagingRewards,
+                                            this.stagingNext, this.stagingTerminal, this.stagingStreamIdxs);
+    }
+
+    // one minibatch update from the replay buffer (publishing the policy every policyRefreshFreq updates)
+    private void learnerStep(Model targetFunction,
+                             double gamma,
+                             int batchSize,
+                             double beta,
+                             int policyRefreshFreq,
+                             long updateIdx)
+    {
+        Main.trainStep(this.getQFunction(), this.getOptimizer(), this.getLossFunction(), this.getReplayBuffer(),
+                       this.getReplayBuffer().sampleBatch(targetFunction, gamma, batchSize, beta));
+        if((updateIdx + 1) % policyRefreshFreq == 0)
+        {
+            this.publishPolicy();
+        }
+    }
+
+    /**
+     * Runs actors and the learner until the actors have finished --numTrainingGames games, then keeps the learner
+     * going until it has made at least Main.getNumMinibatches updates this cycle.
+     * Returns (transitions/sec, updates/sec) for this cycle.
+     */
+    public Pair<Double, Double> runCycle()
+    {
+        int numActors = this.getNamespace().get("numActors");
+        int policyRefreshFreq = this.getNamespace().get("policyRefreshFreq");
+        int batchSize = this.getNamespace().get("miniBatchSize");
+        double gamma = this.getNamespace().get("gamma");
+        double beta = this.getNamespace().get("perBeta");
+        Model targetFunction = this.getTargetQFunction() != null ? this.getTargetQFunction() : this.getQFunction();
+
+        this.isStopped = false;
+        this.startEpsilon = Main.getEpsilon();
+        this.getNumFinishedGames().set(0);
+        this.publishPolicy();
+
+        List<Thread> actorThreads = new ArrayList<Thread>(numActors);
+        for(int aIdx = 0; aIdx < numActors; ++aIdx)
+        {
+            Thread t = new Thread(new Actor(aIdx, new Random(this.getRandom().nextLong())), "cp-actor-" + aIdx);
+            t.setDaemon(true);
+            actorThreads.add(t);
+        }
+
+        long startTime = System.nanoTime();
+        long numTransitions = 0;
+        long numUpdates = 0;
+        for(Thread t : actorThreads)
+        {
+            t.start();
+        }
+
+        // learner loop
+        while(this.getNumFinishedGames().get() < this.getNumTrainingGames())
+        {
+            numTransitions += this.drainRingBuffer();
+
+            if(this.getReplayBuffer().size() >= batchSize)
+            {
+                this.learnerStep(targetFunction, gamma, batchSize, beta, policyRefreshFreq, numUpdates);
+                numUpdates += 1;
+            }
+            else
+            {
+                Thread.onSpinWait();
+            }
+        }
+
+        // stop the actors (abandoning any unfinished games) and collect whatever they published
+        this.isStopped = true;
+        for(Thread t : actorThreads)
+        {
+            try
+            {
+                t.join();
+            } catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        int numDrained;
+        while((numDrained = this.drainRingBuffer()) > 0)
+        {
+            numTransitions += numDrained;
+        }
+        // the abandoned games will never finish their n-step returns
+        this.getReplayBuffer().clearPendingTransitions();
+
+        // the actors may have finished before the learner got many updates in
+        long targetNumUpdates = Main.getNumMinibatches(this.getReplayBuffer(), this.getNamespace());
+        while(numUpdates < targetNumUpdates && this.getReplayBuffer().size() >= batchSize)
+        {
+            this.learnerStep(targetFunction, gamma, batchSize, beta, policyRefreshFreq, numUpdates);
+            numUpdates += 1;
+        }
+        Main.setEpsilon(Main.decayEpsilon(this.getStartEpsilon(), this.getNumFinishedGames().get()));
+
+        double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+        double transitionsPerSec = numTransitions / elapsedSeconds;
+        double updatesPerSec = numUpdates / elapsedSeconds;
+        System.out.println("[INFO] ActorLearnerPipeline.runCycle: actors=" + numActors
+            + " transitions=" + numTransitions + " updates=" + numUpdates + "/" + targetNumUpdates
+            + " transitions/sec=" + String.format("%.1f", transitionsPerSec)
+            + " updates/sec=" + String.format("%.1f", updatesPerSec));
+
+        return new Pair<Double, Double>(transitionsPerSec, updatesPerSec);
+    }
+}
@@ -0,0 +1,182 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.util.BitSet;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.linalg.Matrix;
+
+
+import src.labs.cp.TransitionStorage;
+
+
+/**
+ * Struct-of-arrays storage: s, r, and s' each live in one flat primitive array (row i of s starts at i * dim),
+ * and the terminal flags live in a BitSet. There are no per-row objects and no exception handling on the hot
+ * path, and gathering rows into a batch is a tight loop over the arrays. Float64 stores doubles (exactly what
+ * MatrixTransitionStorage would), Float32 stores floats and so holds twice as many transitions in the same heap.
+ */
+public abstract class ArrayTransitionStorage
+    extends TransitionStorage
+{
+    public static class Float64
+        extends ArrayTransitionStorage
+    {
+        private final double[]  prevStates;
+        private final double[]  rewards;
+        private final double[]  nextStates;
+
+        public Float64(int numSamples,
+                       int dim)
+        {
+            super(numSamples, dim);
+            this.prevStates = new double[numSamples * dim];
+            this.rewards = new double[numSamples];
+            this.nextStates = new double[numSamples * dim];
+        }
+
+        @Override
+        public double getPrevState(int rowIdx, int colIdx) { return this.prevStates[rowIdx * this.getDim() + colIdx]; }
+        @Override
+        public void setPrevState(int rowIdx, int colIdx, double value)
+        {
+            this.prevStates[rowIdx * this.getDim() + colIdx] = value;
+        }
+
+        @Override
+        public double getReward(int rowIdx) { return this.rewards[rowIdx]; }
+        @Override
+        public void setReward(int rowIdx, double value) { this.rewards[rowIdx] = value; }
+
+        @Override
+        public double getNextState(int rowIdx, int colIdx) { return this.nextStates[rowIdx * this.getDim() + colIdx]; }
+        @Override
+        public void setNextState(int rowIdx, int colIdx, double value)
+        {
+            this.nextStates[rowIdx * this.getDim() + colIdx] = value;
+        }
+
+        @Override
+        public void copyPrevStates(int[] rowIdxs, int numRows, Matrix dst) { copyRows(this.prevStates, rowIdxs, numRows, dst); }
+        @Override
+        public void copyNextStates(int[] rowIdxs, int numRows, Matrix dst) { copyRows(this.nextStates, rowIdxs, numRows, dst); }
+
+        private void copyRows(double[] src,
+                              int[] rowIdxs,
+                              int numRows,
+                              Matrix dst)
+        {
+            int dim = this.getDim();
+            for(int idx = 0; idx < numRows; ++idx)
+            {
+                int offset = rowIdxs[idx] * dim;
+                for(int cIdx = 0; cIdx < dim; ++cIdx)
+                {
+                    dst.set(idx, cIdx, src[offset + cIdx]);
+                }
+            }
+        }
+    }
+
+    public static class Float32
+        extends ArrayTransitionStorage
+    {
+        private final float[]   prevStates;
+        private final float[]   rewards;
+        private final float[]   nextStates;
+
+        public Float32(int numSamples,
+                       int dim)
+        {
+            super(numSamples, dim);
+            this.prevStates = new float[numSamples * dim];
+            this.rewards = new float[numSamples];
+            this.nextStates = new float[numSamples * dim];
+        }
+
+        @Override
+        public double getPrevState(int rowIdx, int colIdx) { return this.prevStates[rowIdx * this.getDim() + colIdx]; }
+        @Override
+        public void setPrevState(int rowIdx, int colIdx, double value)
+        {
+            this.prevStates[rowIdx * this.getDim() + colIdx] = (float)value;
+        }
+
+        @Override
+        public double getReward(int rowIdx) { return this.rewards[rowIdx]; }
+        @Override
+        public void setReward(int rowIdx, double value) { this.rewards[rowIdx] = (float)value; }
+
+        @Override
+        public double getNextState(int rowIdx, int colIdx) { return this.nextStates[rowIdx * this.getDim() + colIdx]; }
+        @Override
+        public void setNextState(int rowIdx, int colIdx, double value)
+        {
+            this.nextStates[rowIdx * this.getDim() + colIdx] = (float)value;
+        }
+
+        @Override
+        public void copyPrevStates(int[] rowIdxs, int numRows, Matrix dst) { copyRows(this.prevStates, rowIdxs, numRows, dst); }
+        @Override
+        public void copyNextStates(int[] rowIdxs, int numRows, Matrix dst) { copyRows(this.nextStates, rowIdxs, numRows, dst); }
+
+        private void copyRows(float[] src,
+                              int[] rowIdxs,
+                              int numRows,
+                              Matrix dst)
+        {
+            int dim = this.getDim();
+            for(int idx = 0; idx < numRows; ++idx)
+            {
+                int offset = rowIdxs[idx] * dim;
+                for(int cIdx = 0; cIdx < dim; ++cIdx)
+                {
+                    dst.set(idx, cIdx, src[offset + cIdx]);
+                }
+            }
+        }
+    }
+
+    private final int       capacity;
+    private final int       dim;
+    private int             size;
+    private int             newestSampleIdx;
+    private final BitSet    isTerminalMask;
+
+    protected ArrayTransitionStorage(int numSamples,
+                                     int dim)
+    {
+        if((long)numSamples * dim > Integer.MAX_VALUE)
+        {
+            System.err.println("[ERROR] ArrayTransitionStorage: " + numSamples + " samples of dim " + dim
+                + " don't fit in a single array");
+            System.exit(-1);
+        }
+        this.capacity = numSamples;
+        this.dim = dim;
+        this.size = 0;
+        this.newestSampleIdx = -1;
+        this.isTerminalMask = new BitSet(numSamples);
+    }
+
+    @Override
+    public final int getCapacity() { return this.capacity; }
+    @Override
+    public final int getDim() { return this.dim; }
+
+    @Override
+    public int getSize() { return this.size; }
+    @Override
+    public void setSize(int size) { this.size = size; }
+    @Override
+    public int getNewestSampleIdx() { return this.newestSampleIdx; }
+    @Override
+    public void setNewestSampleIdx(int rowIdx) { this.newestSampleIdx = rowIdx; }
+
+    @Override
+    public boolean isTerminal(int rowIdx) { return this.isTerminalMask.get(rowIdx); }
+    @Override
+    public void setTerminal(int rowIdx, boolean isTerminal) { this.isTerminalMask.set(rowIdx, isTerminal); }
+}
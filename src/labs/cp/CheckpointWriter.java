@@ -0,0 +1,172 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.nn.Model;
+
+
+import src.labs.cp.Main;
+import src.labs.cp.ModelSnapshot;
+
+
+/**
+ * Saves q-function checkpoints (fileBase + idx + ".model") without stalling training. submit() only takes a
+ * ModelSnapshot of the parameters; a single background thread loads that snapshot into its own scratch model and
+ * saves it. Every checkpoint is written to a temp file first and then renamed into place, so a checkpoint file
+ * is never seen half written.
+ *
+ * If numToKeep > 0, only the numToKeep most recent checkpoints are kept, along with the checkpoint with the
+ * best eval score (as reported through reportEval). Checkpoints that weren't written by this writer are never
+ * deleted. All work (including retention) happens on the background thread, in submission order.
+ */
+public class CheckpointWriter
+    extends Object
+{
+    private final String            fileBase;
+    private final int               numToKeep;
+    private final ExecutorService   executor;
+
+    // only touched by the background thread
+    private final Model             scratchModel;
+    private final Deque<Long>       writtenIdxs;
+    private long                    bestIdx;
+    private double                  bestScore;
+
+    public CheckpointWriter(String fileBase,
+                            int numToKeep)
+    {
+        this.fileBase = fileBase;
+        this.numToKeep = numToKeep;
+        this.executor = Executors.newSingleThreadExecutor(r ->
+        {
+            Thread t = new Thread(r, "cp-checkpoint-writer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.scratchModel = Main.initQFunction();
+        this.writtenIdxs = new ArrayDeque<Long>();
+        this.bestIdx = -1;
+        this.bestScore = Double.NEGATIVE_INFINITY;
+    }
+
+    public final String getFileBase() { return this.fileBase; }
+    public final int getNumToKeep() { return this.numToKeep; }
+    private ExecutorService getExecutor() { return this.executor; }
+
+    private Model getScratchModel() { return this.scratchModel; }
+    private Deque<Long> getWrittenIdxs() { return this.writtenIdxs; }
+
+    public String getPath(long idx) { return this.getFileBase() + idx + ".model"; }
+
+    // snapshot qFunction now and save it as checkpoint idx in the background
+    public void submit(long idx,
+                       Model qFunction)
+    {
+        ModelSnapshot snapshot = ModelSnapshot.of(qFunction);
+        this.getExecutor().execute(() -> this.write(idx, snapshot));
+    }
+
+    // tell the writer how checkpoint idx did in eval (higher is better)
+    public void reportEval(long idx,
+                           double score)
+    {
+        this.getExecutor().execute(() ->
+        {
+            if(score > this.bestScore)
+            {
+                this.bestScore = score;
+                this.bestIdx = idx;
+            }
+            this.enforceRetention();
+        });
+    }
+
+    // wait for every submitted checkpoint to be written
+    public void close()
+    {
+        this.getExecutor().shutdown();
+        try
+        {
+            this.getExecutor().awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(long idx,
+                       ModelSnapshot snapshot)
+    {
+        File finalFile = new File(this.getPath(idx));
+        File tmpFile = new File(this.getPath(idx) + ".tmp");
+
+        snapshot.loadInto(this.getScratchModel());
+        this.getScratchModel().save(tmpFile.getPath());
+
+        try
+        {
+            try
+            {
+                Files.move(tmpFile.toPath(), finalFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch(AtomicMoveNotSupportedException e)
+            {
+                Files.move(tmpFile.toPath(), finalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch(IOException e)
+        {
+            System.err.println("[ERROR] CheckpointWriter.write: unable to move " + tmpFile + " to " + finalFile);
+            e.printStackTrace();
+            return;
+        }
+
+        this.getWrittenIdxs().remove(idx);
+        this.getWrittenIdxs().addLast(idx);
+        this.enforceRetention();
+    }
+
+    private void enforceRetention()
+    {
+        if(this.getNumToKeep() <= 0)
+        {
+            return;
+        }
+
+        // keep the newest numToKeep checkpoints and the best one, delete everything else
+        int numOld = this.getWrittenIdxs().size() - this.getNumToKeep();
+        boolean isBestOld = false;
+        for(int oldIdx = 0; oldIdx < numOld; ++oldIdx)
+        {
+            long idx = this.getWrittenIdxs().pollFirst();
+            if(idx == this.bestIdx)
+            {
+                isBestOld = true;
+                continue;
+            }
+
+            File f = new File(this.getPath(idx));
+            if(f.exists() && !f.delete())
+            {
+                System.err.println("[ERROR] CheckpointWriter.enforceRetention: unable to delete " + f);
+            }
+        }
+        if(isBestOld)
+        {
+            this.getWrittenIdxs().addFirst(this.bestIdx);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.util.List;
+import java.util.Random;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.linalg.Matrix;
+import edu.bu.cp.nn.Model;
+import edu.bu.cp.nn.Parameter;
+
+
+import src.labs.cp.Main;
+
+
+/**
+ * An inference-only copy of a q-function with the architecture built by Main.initQFunction (Dense layers with a
+ * Sigmoid between each pair of them). The weights are flattened into primitive arrays and every intermediate
+ * activation has a preallocated buffer, so act() picks the argmax action for a state without allocating anything,
+ * which makes acting much cheaper than Model.forward (that allocates a few matrices per layer).
+ *
+ * The copy doesn't follow the model: call refresh() whenever the model's parameters change (e.g. after update).
+ * When compiled, the copy is checked against qFunction.forward on a random state. If they disagree (i.e.
+ * initQFunction was changed to an architecture this class doesn't know) a warning is printed and act() just
+ * falls back to qFunction.forward.
+ *
+ * Not thread-safe: every thread needs its own CompiledQFunction.
+ */
+public class CompiledQFunction
+    extends Object
+{
+    public static final double PROBE_TOLERANCE = 1e-9;
+
+    private final Model         qFunction;
+    private final boolean       isExact;
+
+    // layer l maps layerSizes[l] inputs to layerSizes[l+1] outputs with a (in x out) row-major weight matrix
+    private final int[]         layerSizes;
+    private final double[][]    weights;
+    private final double[][]    biases;
+
+    // input buffer and one output buffer per layer (the last one holds the q-values)
+    private final double[]      input;
+    private final double[][]    outputs;
+
+    private CompiledQFunction(Model qFunction)
+    {
+        this.qFunction = qFunction;
+
+        List<Parameter> params = qFunction.getParameters();
+        int[] layerSizes = inferLayerSizes(params);
+        boolean isCompilable = layerSizes != null;
+        if(!isCompilable)
+        {
+            // still allocate something sensible so that the fields are never null
+            layerSizes = new int[]{1, 1};
+        }
+
+        int numLayers = layerSizes.length - 1;
+        this.layerSizes = layerSizes;
+        this.weights = new double[numLayers][];
+        this.biases = new double[numLayers][];
+        this.outputs = new double[numLayers][];
+        for(int lIdx = 0; lIdx < numLayers; ++lIdx)
+        {
+            this.weights[lIdx] = new double[layerSizes[lIdx] * layerSizes[lIdx + 1]];
+            this.biases[lIdx] = new double[layerSizes[lIdx + 1]];
+            this.outputs[lIdx] = new double[layerSizes[lIdx + 1]];
+        }
+        this.input = new double[layerSizes[0]];
+
+        if(isCompilable)
+        {
+            this.refresh();
+        }
+        this.isExact = isCompilable && this.matchesModel();
+        if(!this.isExact)
+        {
+            System.err.println("[WARNING] CompiledQFunction: the q-function isn't a Dense/Sigmoid stack like "
+                + "Main.initQFunction, falling back to Model.forward for acting");
+        }
+    }
+
+    public static CompiledQFunction compile(Model qFunction)
+    {
+        return new CompiledQFunction(qFunction);
+    }
+
+    public final Model getQFunction() { return this.qFunction; }
+    public final boolean isExact() { return this.isExact; }
+    public final int getStateDim() { return this.layerSizes[0]; }
+    public final int getNumActions() { return this.layerSizes[this.layerSizes.length - 1]; }
+    private int getNumLayers() { return this.weights.length; }
+
+    // parameters come in (W, b) pairs, W is (in x out), b is (1 x out), and each layer feeds the next
+    private static int[] inferLayerSizes(List<Parameter> params)
+    {
+        if(params.isEmpty() || params.size() % 2 != 0)
+        {
+            return null;
+        }
+
+        int numLayers = params.size() / 2;
+        int[] layerSizes = new int[numLayers + 1];
+        for(int lIdx = 0; lIdx < numLayers; ++lIdx)
+        {
+            Matrix W = params.get(2 * lIdx).getValue();
+            Matrix b = params.get(2 * lIdx + 1).getValue();
+            int numIn = W.getShape().getNumRows();
+            int numOut = W.getShape().getNumCols();
+            if(b.getShape().getNumRows() != 1 || b.getShape().getNumCols() != numOut
+               || (lIdx > 0 && layerSizes[lIdx] != numIn))
+            {
+                return null;
+            }
+            layerSizes[lIdx] = numIn;
+            layerSizes[lIdx + 1] = numOut;
+        }
+        return layerSizes;
+    }
+
+    // compare against the real model on a random state
+    private boolean matchesModel()
+    {
+        Random rng = new Random(Main.SEED);
+        Matrix state = Matrix.randn(1, this.getStateDim(), rng);
+        try
+        {
+            Matrix expected = this.getQFunction().forward(state);
+            if(expected.getShape().getNumCols() != this.getNumActions())
+            {
+                return false;
+            }
+            double[] actual = this.qValues(state);
+            for(int aIdx = 0; aIdx < this.getNumActions(); ++aIdx)
+            {
+                double diff = Math.abs(expected.get(0, aIdx) - actual[aIdx]);
+                if(diff > PROBE_TOLERANCE * Math.max(1.0, Math.abs(expected.get(0, aIdx))))
+                {
+                    return false;
+                }
+            }
+        } catch(Exception e)
+        {
+            return false;
+        }
+        return true;
+    }
+
+    // re-read the model's parameters (no allocation)
+    public void refresh()
+    {
+        if(this.getNumLayers() * 2 != this.getQFunction().getParameters().size())
+        {
+            return;
+        }
+
+        List<Parameter> params = this.getQFunction().getParameters();
+        for(int lIdx = 0; lIdx < this.getNumLayers(); ++lIdx)
+        {
+            Matrix W = params.get(2 * lIdx).getValue();
+            Matrix b = params.get(2 * lIdx + 1).getValue();
+            int numIn = this.layerSizes[lIdx];
+            int numOut = this.layerSizes[lIdx + 1];
+            for(int iIdx = 0; iIdx < numIn; ++iIdx)
+            {
+                for(int oIdx = 0; oIdx < numOut; ++oIdx)
+                {
+                    this.weights[lIdx][iIdx * numOut + oIdx] = W.get(iIdx, oIdx);
+                }
+            }
+            for(int oIdx = 0; oIdx < numOut; ++oIdx)
+            {
+                this.biases[lIdx][oIdx] = b.get(0, oIdx);
+            }
+        }
+    }
+
+    /**
+     * The q-value of every action for state. The returned array is reused by the next call, so copy it if you
+     * need to keep it around.
+     */
+    public double[] qValues(double[] state)
+    {
+        double[] in = state;
+        for(int lIdx = 0; lIdx < this.getNumLayers(); ++lIdx)
+        {
+            double[] W = this.weights[lIdx];
+            double[] out = this.outputs[lIdx];
+            int numIn = this.layerSizes[lIdx];
+            int numOut = this.layerSizes[lIdx + 1];
+
+            System.arraycopy(this.biases[lIdx], 0, out, 0, numOut);
+            for(int iIdx = 0; iIdx < numIn; ++iIdx)
+            {
+                double x = in[iIdx];
+                int offset = iIdx * numOut;
+                for(int oIdx = 0; oIdx < numOut; ++oIdx)
+                {
+                    out[oIdx] += x * W[offset + oIdx];
+                }
+            }
+
+            // every layer but the last is followed by a sigmoid
+            if(lIdx < this.getNumLayers() - 1)
+            {
+                for(int oIdx = 0; oIdx < numOut; ++oIdx)
+                {
+                    out[oIdx] = 1.0 / (1.0 + Math.exp(-out[oIdx]));
+                }
+            }
+            in = out;
+        }
+        return in;
+    }
+
+    // same as above for a (1 x dim) state matrix
+    public double[] qValues(Matrix state)
+    {
+        for(int cIdx = 0; cIdx < this.input.length; ++cIdx)
+        {
+            this.input[cIdx] = state.get(0, cIdx);
+        }
+        return this.qValues(this.input);
+    }
+
+    // argmax_a Q(state, a) (ties go to the first action, like Main.argmax)
+    public int act(double[] state)
+    {
+        if(!this.isExact())
+        {
+            Matrix m = Matrix.zeros(1, state.length);
+            for(int cIdx = 0; cIdx < state.length; ++cIdx)
+            {
+                m.set(0, cIdx, state[cIdx]);
+            }
+            return this.actWithModel(m);
+        }
+        return argmax(this.qValues(state));
+    }
+
+    public int act(Matrix state)
+    {
+        if(!this.isExact())
+        {
+            return this.actWithModel(state);
+        }
+        return argmax(this.qValues(state));
+    }
+
+    private int actWithModel(Matrix state)
+    {
+        try
+        {
+            return Main.argmax(this.getQFunction().forward(state));
+        } catch(Exception e)
+        {
+            System.err.println("[ERROR] CompiledQFunction.act: error caught using qFunction");
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return -1;
+    }
+
+    private static int argmax(double[] qValues)
+    {
+        int action = 0;
+        for(int aIdx = 1; aIdx < qValues.length; ++aIdx)
+        {
+            if(qValues[aIdx] > qValues[action])
+            {
+                action = aIdx;
+            }
+        }
+        return action;
+    }
+}
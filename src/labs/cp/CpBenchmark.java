@@ -0,0 +1,439 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.linalg.Matrix;
+import edu.bu.cp.nn.Model;
+import edu.bu.cp.nn.layers.Dense;
+import edu.bu.cp.nn.layers.Sigmoid;
+import edu.bu.cp.nn.models.Sequential;
+import edu.bu.cp.utils.Pair;
+
+
+import src.labs.cp.Dataset;
+import src.labs.cp.GroundTruthBenchmark;
+import src.labs.cp.Main;
+import src.labs.cp.ReplayBuffer;
+
+
+/**
+ * Microbenchmarks for the pieces of the cp learning pipeline that run every cycle (ReplayBuffer.addSample,
+ * getGroundTruth, sampleBatch, getTrainingData, Dataset.shuffle, a full pass of Dataset.BatchIterator, and
+ * Main.argmax) over a grid of buffer sizes, state dims, and batch sizes.
+ *
+ * Every benchmark is run for --warmupIters untimed iterations (so that we aren't timing the jit) and then for
+ * --measureIters timed iterations, each of which calls the benchmarked operation until --iterTimeMs have passed.
+ * We report the mean (and stddev across iterations) time per operation, along with the number of bytes
+ * allocated per operation by the benchmarking thread (from com.sun.management.ThreadMXBean).
+ * GroundTruthBenchmark additionally checks that the PER_SAMPLE and BATCHED targets agree.
+ *
+ * Run with:
+ *      java -cp "./lib/*:." src.labs.cp.CpBenchmark [--filter GroundTruth] [--sizes 1000 10000]
+ */
+public class CpBenchmark
+    extends Object
+{
+    public static final int[]   BUFFER_SIZES = new int[]{1000, 10000, 100000};
+    public static final int[]   DIMS = new int[]{4, 16};
+    public static final int[]   BATCH_SIZES = new int[]{32, 128};
+    public static final double  GAMMA = 0.99;
+    public static final int     HIDDEN_DIM = 36;
+    public static final int     NUM_ACTIONS = 2;
+
+    // benchmarks fold their results into this so the jit can't throw the work away
+    private static volatile double blackhole = 0;
+
+    /**
+     * One benchmarked operation with one setting of its parameters. setup() is called once (untimed)
+     * before any iteration, op() is what gets timed.
+     */
+    public static abstract class Benchmark
+        extends Object
+    {
+        private final String    name;
+        private final String    params;
+
+        public Benchmark(final String name,
+                         final String params)
+        {
+            this.name = name;
+            this.params = params;
+        }
+
+        public final String getName() { return this.name; }
+        public final String getParams() { return this.params; }
+
+        public void setup() {}
+        public abstract double op();
+    }
+
+    public static class Result
+        extends Object
+    {
+        private final double   nsPerOp;
+        private final double   nsPerOpStdDev;
+        private final double   bytesPerOp;
+        private final long     numOps;
+
+        public Result(final double nsPerOp,
+                      final double nsPerOpStdDev,
+                      final double bytesPerOp,
+                      final long numOps)
+        {
+            this.nsPerOp = nsPerOp;
+            this.nsPerOpStdDev = nsPerOpStdDev;
+            this.bytesPerOp = bytesPerOp;
+            this.numOps = numOps;
+        }
+
+        public final double getNsPerOp() { return this.nsPerOp; }
+        public final double getNsPerOpStdDev() { return this.nsPerOpStdDev; }
+        public final double getBytesPerOp() { return this.bytesPerOp; }
+        public final long getNumOps() { return this.numOps; }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private static long allocatedBytes()
+    {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // runs op() until iterTimeNs have passed. Returns (numOps, elapsedNs) and adds the allocated bytes to bytes[0]
+    private static Pair<Long, Long> runIteration(Benchmark benchmark,
+                                                long iterTimeNs,
+                                                long[] bytes)
+    {
+        double sink = 0;
+        long numOps = 0;
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        long elapsed = 0;
+        while(elapsed < iterTimeNs)
+        {
+            sink += benchmark.op();
+            numOps += 1;
+            elapsed = System.nanoTime() - start;
+        }
+        bytes[0] += allocatedBytes() - startBytes;
+        blackhole += sink;
+        return new Pair<Long, Long>(numOps, elapsed);
+    }
+
+    public static Result run(Benchmark benchmark,
+                             int numWarmupIters,
+                             int numMeasureIters,
+                             long iterTimeMs)
+    {
+        long iterTimeNs = iterTimeMs * 1000000l;
+        long[] bytes = new long[1];
+        benchmark.setup();
+
+        for(int iterIdx = 0; iterIdx < numWarmupIters; ++iterIdx)
+        {
+            runIteration(benchmark, iterTimeNs, bytes);
+        }
+
+        bytes[0] = 0;
+        long totalOps = 0;
+        double[] nsPerOp = new double[numMeasureIters];
+        for(int iterIdx = 0; iterIdx < numMeasureIters; ++iterIdx)
+        {
+            Pair<Long, Long> opsAndNs = runIteration(benchmark, iterTimeNs, bytes);
+            totalOps += opsAndNs.getFirst();
+            nsPerOp[iterIdx] = ((double)opsAndNs.getSecond()) / opsAndNs.getFirst();
+        }
+
+        double mean = 0;
+        for(double d : nsPerOp)
+        {
+            mean += d / numMeasureIters;
+        }
+        double variance = 0;
+        for(double d : nsPerOp)
+        {
+            variance += (d - mean) * (d - mean) / Math.max(1, numMeasureIters - 1);
+        }
+        return new Result(mean, Math.sqrt(variance), ((double)bytes[0]) / totalOps, totalOps);
+    }
+
+    // same architecture as Main.initQFunction but for arbitrary state dims
+    public static Model makeQFunction(int dim)
+    {
+        if(dim == VectorizedGame.STATE_DIM)
+        {
+            return Main.initQFunction();
+        }
+        Sequential m = new Sequential();
+        m.add(new Dense(dim, HIDDEN_DIM));
+        m.add(new Sigmoid());
+        m.add(new Dense(HIDDEN_DIM, NUM_ACTIONS));
+        return m;
+    }
+
+    public static List<Benchmark> makeBenchmarks(int[] bufferSizes,
+                                                 int[] dims,
+                                                 int[] batchSizes)
+    {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        // Main.argmax over a single row of q-values (the per-step cost of acting)
+        final Matrix qValues = Matrix.randn(1, NUM_ACTIONS, new Random(Main.SEED));
+        benchmarks.add(new Benchmark("argmax", "numActions=" + NUM_ACTIONS)
+        {
+            @Override
+            public double op() { return Main.argmax(qValues); }
+        });
+
+        for(int dim : dims)
+        {
+            for(int bufferSize : bufferSizes)
+            {
+                final int n = bufferSize;
+                final int d = dim;
+                final String params = "size=" + n + " dim=" + d;
+
+                // addSample into a full buffer (so every add also evicts)
+                benchmarks.add(new Benchmark("addSample", params)
+                {
+                    private ReplayBuffer rb;
+                    private Matrix prevState;
+                    private Matrix nextState;
+
+                    @Override
+                    public void setup()
+                    {
+                        Random rng = new Random(Main.SEED);
+                        this.rb = GroundTruthBenchmark.makeFullBuffer(ReplayBuffer.TargetComputationType.BATCHED,
+                                                                      n, d, Main.SEED);
+                        this.prevState = Matrix.randn(1, d, rng);
+                        this.nextState = Matrix.randn(1, d, rng);
+                    }
+
+                    @Override
+                    public double op()
+                    {
+                        this.rb.addSample(this.prevState, 1.0, this.nextState);
+                        return this.rb.size();
+                    }
+                });
+
+                for(final ReplayBuffer.TargetComputationType targetType : ReplayBuffer.TargetComputationType.values())
+                {
+                    benchmarks.add(new Benchmark("getGroundTruth", params + " targets=" + targetType)
+                    {
+                        private ReplayBuffer rb;
+                        private Model qFunction;
+
+                        @Override
+                        public void setup()
+                        {
+                            this.rb = GroundTruthBenchmark.makeFullBuffer(targetType, n, d, Main.SEED);
+                            this.qFunction = makeQFunction(d);
+                        }
+
+                        @Override
+                        public double op() { return this.rb.getGroundTruth(this.qFunction, GAMMA).get(0, 0); }
+                    });
+                }
+
+                benchmarks.add(new Benchmark("getTrainingData", params)
+                {
+                    private ReplayBuffer rb;
+                    private Model qFunction;
+
+                    @Override
+                    public void setup()
+                    {
+                        this.rb = GroundTruthBenchmark.makeFullBuffer(ReplayBuffer.TargetComputationType.BATCHED,
+                                                                      n, d, Main.SEED);
+                        this.qFunction = makeQFunction(d);
+                    }
+
+                    @Override
+                    public double op()
+                    {
+                        return this.rb.getTrainingData(this.qFunction, GAMMA).getSecond().get(0, 0);
+                    }
+                });
+
+                benchmarks.add(new Benchmark("Dataset.shuffle", params)
+                {
+                    private Dataset dataset;
+
+                    @Override
+                    public void setup()
+                    {
+                        Random rng = new Random(Main.SEED);
+                        this.dataset = new Dataset(Matrix.randn(n, d, rng), Matrix.randn(n, 1, rng),
+                                                   BATCH_SIZES[0], rng);
+                    }
+
+                    @Override
+                    public double op()
+                    {
+                        this.dataset.shuffle();
+                        return this.dataset.size();
+                    }
+                });
+
+                for(int batchSize : batchSizes)
+                {
+                    final int bs = batchSize;
+                    final String batchParams = params + " batchSize=" + bs;
+
+                    // one epoch: every batch of a shuffled dataset, materialized the way Main.update uses them
+                    benchmarks.add(new Benchmark("Dataset.BatchIterator", batchParams)
+                    {
+                        private Dataset dataset;
+
+                        @Override
+                        public void setup()
+                        {
+                            Random rng = new Random(Main.SEED);
+                            this.dataset = new Dataset(Matrix.randn(n, d, rng), Matrix.randn(n, 1, rng), bs, rng);
+                            this.dataset.shuffle();
+                        }
+
+                        @Override
+                        public double op()
+                        {
+                            double sink = 0;
+                            Dataset.BatchIterator it = this.dataset.iterator();
+                            while(it.hasNext())
+                            {
+                                Dataset.Batch batch = it.next();
+                                sink += batch.getX().get(0, 0) + batch.getYGt().get(0, 0);
+                            }
+                            return sink;
+                        }
+                    });
+
+                    benchmarks.add(new Benchmark("sampleBatch", batchParams)
+                    {
+                        private ReplayBuffer rb;
+                        private Model qFunction;
+
+                        @Override
+                        public void setup()
+                        {
+                            this.rb = GroundTruthBenchmark.makeFullBuffer(ReplayBuffer.TargetComputationType.BATCHED,
+                                                                          n, d, Main.SEED);
+                            this.qFunction = makeQFunction(d);
+                        }
+
+                        @Override
+                        public double op()
+                        {
+                            return this.rb.sampleBatch(this.qFunction, GAMMA, bs, 0.0).getYGt().get(0, 0);
+                        }
+                    });
+                }
+            }
+        }
+        return benchmarks;
+    }
+
+    private static int[] toIntArray(List<Integer> l)
+    {
+        int[] a = new int[l.size()];
+        for(int idx = 0; idx < a.length; ++idx)
+        {
+            a[idx] = l.get(idx);
+        }
+        return a;
+    }
+
+    public static void main(String[] args)
+    {
+        ArgumentParser parser = ArgumentParsers.newFor("CpBenchmark").build()
+            .defaultHelp(true)
+            .description("Microbenchmarks for the cp replay buffer / dataset pipeline");
+
+        parser.addArgument("--filter")
+            .type(String.class)
+            .setDefault("")
+            .help("only run benchmarks whose name contains this string");
+        parser.addArgument("--sizes")
+            .type(Integer.class)
+            .nargs("+")
+            .setDefault(toList(BUFFER_SIZES))
+            .help("replay buffer / dataset sizes to benchmark");
+        parser.addArgument("--dims")
+            .type(Integer.class)
+            .nargs("+")
+            .setDefault(toList(DIMS))
+            .help("state dims to benchmark");
+        parser.addArgument("--batchSizes")
+            .type(Integer.class)
+            .nargs("+")
+            .setDefault(toList(BATCH_SIZES))
+            .help("minibatch sizes to benchmark");
+        parser.addArgument("--warmupIters")
+            .type(Integer.class)
+            .setDefault(3)
+            .help("untimed iterations run before measuring");
+        parser.addArgument("--measureIters")
+            .type(Integer.class)
+            .setDefault(5)
+            .help("timed iterations");
+        parser.addArgument("--iterTimeMs")
+            .type(Long.class)
+            .setDefault(500l)
+            .help("how long each iteration keeps calling the benchmarked operation");
+
+        Namespace ns = parser.parseArgsOrFail(args);
+
+        if(!THREAD_MX_BEAN.isThreadAllocatedMemorySupported())
+        {
+            System.err.println("[ERROR] CpBenchmark.main: this jvm can't measure per-thread allocations");
+            System.exit(-1);
+        }
+        THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+
+        String filter = ns.get("filter");
+        int numWarmupIters = ns.get("warmupIters");
+        int numMeasureIters = ns.get("measureIters");
+        long iterTimeMs = ns.get("iterTimeMs");
+
+        System.out.println("benchmark\tparams\tns/op\t+-\tbytes/op\tops");
+        for(Benchmark benchmark : makeBenchmarks(toIntArray(ns.<List<Integer>>get("sizes")),
+                                                 toIntArray(ns.<List<Integer>>get("dims")),
+                                                 toIntArray(ns.<List<Integer>>get("batchSizes"))))
+        {
+            if(!benchmark.getName().contains(filter))
+            {
+                continue;
+            }
+
+            Result result = run(benchmark, numWarmupIters, numMeasureIters, iterTimeMs);
+            System.out.println(benchmark.getName() + "\t" + benchmark.getParams()
+                + "\t" + String.format("%.1f", result.getNsPerOp())
+                + "\t" + String.format("%.1f", result.getNsPerOpStdDev())
+                + "\t" + String.format("%.1f", result.getBytesPerOp())
+                + "\t" + result.getNumOps());
+        }
+    }
+
+    private static List<Integer> toList(int[] a)
+    {
+        List<Integer> l = new ArrayList<Integer>(a.length);
+        for(int i : a)
+        {
+            l.add(i);
+        }
+        return l;
+    }
+}
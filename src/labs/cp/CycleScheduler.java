@@ -0,0 +1,114 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.util.ArrayList;
+import java.util.List;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.utils.Pair;
+
+
+/**
+ * Decides when training has stopped paying off. After every cycle Main.run hands the scheduler that cycle's
+ * eval (avg utility, avg game length) and stops once either
+ *      - (success) the avg eval game length reached successGameLength (e.g. every eval game hit the game length cap)
+ *      - (plateau) the best avg utility of the last plateauWindow cycles isn't more than plateauDelta better than
+ *        the best avg utility before them
+ * Either check is turned off by setting its threshold/window to 0.
+ *
+ * isConfident is the sequential test used to cut eval short: after every eval game (or round of eval games) we
+ * stop playing once the confidence interval of the avg utility is within a relative tolerance of the avg.
+ */
+public class CycleScheduler
+    extends Object
+{
+    // ~95% normal confidence interval
+    public static final double CONFIDENCE_Z = 1.96;
+
+    private final int           plateauWindow;
+    private final double        plateauDelta;
+    private final double        successGameLength;
+
+    private final List<Double>  utilities;
+    private String              stopReason;
+
+    public CycleScheduler(int plateauWindow,
+                          double plateauDelta,
+                          double successGameLength)
+    {
+        this.plateauWindow = plateauWindow;
+        this.plateauDelta = plateauDelta;
+        this.successGameLength = successGameLength;
+        this.utilities = new ArrayList<Double>();
+        this.stopReason = null;
+    }
+
+    public final int getPlateauWindow() { return this.plateauWindow; }
+    public final double getPlateauDelta() { return this.plateauDelta; }
+    public final double getSuccessGameLength() { return this.successGameLength; }
+    private List<Double> getUtilities() { return this.utilities; }
+
+    // why shouldStop said to stop (null if it hasn't)
+    public final String getStopReason() { return this.stopReason; }
+
+    // record the eval after cycleIdx and decide whether to stop
+    public boolean shouldStop(int cycleIdx,
+                              Pair<Double, Double> eval)
+    {
+        this.getUtilities().add(eval.getFirst());
+
+        if(this.getSuccessGameLength() > 0 && eval.getSecond() >= this.getSuccessGameLength())
+        {
+            this.stopReason = "success: avg(game_length)=" + eval.getSecond() + " >= " + this.getSuccessGameLength();
+            return true;
+        }
+
+        int numCycles = this.getUtilities().size();
+        if(this.getPlateauWindow() > 0 && numCycles > this.getPlateauWindow())
+        {
+            double bestBefore = Double.NEGATIVE_INFINITY;
+            double bestInWindow = Double.NEGATIVE_INFINITY;
+            for(int cIdx = 0; cIdx < numCycles; ++cIdx)
+            {
+                if(cIdx < numCycles - this.getPlateauWindow())
+                {
+                    bestBefore = Math.max(bestBefore, this.getUtilities().get(cIdx));
+                }
+                else
+                {
+                    bestInWindow = Math.max(bestInWindow, this.getUtilities().get(cIdx));
+                }
+            }
+
+            if(bestInWindow <= bestBefore + this.getPlateauDelta())
+            {
+                this.stopReason = "plateau: best avg(utility) of the last " + this.getPlateauWindow() + " cycles="
+                    + bestInWindow + " vs " + bestBefore + " before";
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether numGames utilities with the given sum and sum of squares pin down their mean well enough: the
+     * half width of the confidence interval is at most tolerance * max(|mean|, 1).
+     */
+    public static boolean isConfident(long numGames,
+                                      double utilitySum,
+                                      double utilitySqSum,
+                                      double tolerance)
+    {
+        if(numGames < 2)
+        {
+            return false;
+        }
+
+        double mean = utilitySum / numGames;
+        double variance = Math.max(utilitySqSum - numGames * mean * mean, 0) / (numGames - 1);
+        double halfWidth = CONFIDENCE_Z * Math.sqrt(variance / numGames);
+        return halfWidth <= tolerance * Math.max(Math.abs(mean), 1);
+    }
+}
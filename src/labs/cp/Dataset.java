@@ -14,29 +14,130 @@ import edu.bu.cp.utils.Pair;
 public class Dataset
     extends Object
 {
+    /**
+     * A view of rows [rIdxStart, rIdxEnd) of the dataset (in the dataset's current row order). Creating a Batch
+     * copies nothing: individual elements can be read straight out of the full X/YGt storage with
+     * getX(bIdx, cIdx) and getYGt(bIdx, cIdx). Since Model.forward/backwards only accept a Matrix, getX()/getYGt()
+     * hand out the full storage itself when the view covers the whole (unshuffled) dataset, and otherwise
+     * gather the rows once into batch matrices owned by the Dataset (which are reused for every batch and epoch).
+     * Either way the matrices are only valid until the iterator's next call to next().
+     */
+    public static class Batch
+        extends Object
+    {
+        private final Dataset dataset;
+        private final int rIdxStart;
+        private final int rIdxEnd;
+
+        private Matrix X;
+        private Matrix YGt;
+
+        public Batch(final Dataset dataset,
+                     final int rIdxStart,
+                     final int rIdxEnd)
+        {
+            this.dataset = dataset;
+            this.rIdxStart = rIdxStart;
+            this.rIdxEnd = rIdxEnd;
+            this.X = null;
+            this.YGt = null;
+        }
+
+        protected final Dataset getDataset() { return this.dataset; }
+        public final int getStartRowIdx() { return this.rIdxStart; }
+        public final int getEndRowIdx() { return this.rIdxEnd; }
+        public final int size() { return this.getEndRowIdx() - this.getStartRowIdx(); }
+
+        // row of the full storage that row bIdx of this batch points at
+        private int getRowIdx(int bIdx) { return this.getDataset().getPermutation()[this.getStartRowIdx() + bIdx]; }
+
+        public double getX(int bIdx, int cIdx) throws IndexOutOfBoundsException
+        {
+            return this.getDataset().getFullX().get(this.getRowIdx(bIdx), cIdx);
+        }
+
+        public double getYGt(int bIdx, int cIdx) throws IndexOutOfBoundsException
+        {
+            return this.getDataset().getFullYGt().get(this.getRowIdx(bIdx), cIdx);
+        }
+
+        private boolean coversFullStorage()
+        {
+            return !this.getDataset().isShuffled()
+                && this.getStartRowIdx() == 0
+                && this.getEndRowIdx() == this.getDataset().getFullX().getShape().getNumRows();
+        }
+
+        public Matrix getX()
+        {
+            if(this.X == null)
+            {
+                this.X = this.coversFullStorage()
+                    ? this.getDataset().getFullX()
+                    : this.gather(this.getDataset().getFullX(), this.getDataset().getXBatch(this.size()));
+            }
+            return this.X;
+        }
+
+        public Matrix getYGt()
+        {
+            if(this.YGt == null)
+            {
+                this.YGt = this.coversFullStorage()
+                    ? this.getDataset().getFullYGt()
+                    : this.gather(this.getDataset().getFullYGt(), this.getDataset().getYGtBatch(this.size()));
+            }
+            return this.YGt;
+        }
+
+        private Matrix gather(Matrix full,
+                              Matrix dst)
+        {
+            try
+            {
+                for(int bIdx = 0; bIdx < this.size(); ++bIdx)
+                {
+                    int rIdx = this.getRowIdx(bIdx);
+                    for(int cIdx = 0; cIdx < dst.getShape().getNumCols(); ++cIdx)
+                    {
+                        dst.set(bIdx, cIdx, full.get(rIdx, cIdx));
+                    }
+                }
+            } catch(Exception e)
+            {
+                System.err.println("[ERROR] Batch.gather: caught");
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            return dst;
+        }
+    }
+
+    /**
+     * Walks the dataset one minibatch at a time in the order given by the dataset's permutation.
+     * Each call to next() returns a Batch view over the next row range, see Batch for when rows get copied.
+     */
     public static class BatchIterator
-        extends Object implements Iterator<Pair<Matrix, Matrix> >
+        extends Object implements Iterator<Batch>
     {
-        private final Matrix X;
-        private final Matrix YGt;
+        private final Dataset dataset;
         private final long batchSize;
         private final long numBatches;
         private long currentBatchIdx;
 
-        public BatchIterator(final Matrix X,
-                             final Matrix YGt,
+        public BatchIterator(final Dataset dataset,
                              final long batchSize,
                              final long numBatches)
         {
-            this.X = X;
-            this.YGt = YGt;
+            this.dataset = dataset;
             this.batchSize = batchSize;
             this.numBatches = numBatches;
             this.currentBatchIdx = 0l;
         }
 
-        protected final Matrix getFullX() { return this.X; }
-        protected final Matrix getFullYGt() { return this.YGt; }
+        protected final Dataset getDataset() { return this.dataset; }
+        protected final Matrix getFullX() { return this.getDataset().getFullX(); }
+        protected final Matrix getFullYGt() { return this.getDataset().getFullYGt(); }
         protected final long getBatchSize() { return this.batchSize; }
         protected final long getNumBatches() { return this.numBatches; }
         protected long getCurrentBatchIdx() { return this.currentBatchIdx; }
@@ -47,32 +148,17 @@ public class Dataset
         public boolean hasNext() { return this.getCurrentBatchIdx() < this.getNumBatches(); }
 
         @Override
-        public Pair<Matrix, Matrix> next()
+        public Batch next()
         {
             int rIdxStart = (int)(this.getBatchSize() * this.getCurrentBatchIdx());
-            int rIdxEnd = (int)((this.getBatchSize() + 1) * this.getCurrentBatchIdx());
+            int rIdxEnd = (int)(this.getBatchSize() * (this.getCurrentBatchIdx() + 1));
             if(rIdxEnd >= this.getFullX().getShape().getNumRows())
             {
                 rIdxEnd = this.getFullX().getShape().getNumRows();
             }
-            Matrix XBatch = null;
-            Matrix YGtBatch = null;
-
-            try
-            {
-                XBatch = this.getFullX().getSlice(rIdxStart, rIdxEnd,
-                                                  0, this.getFullX().getShape().getNumCols());
-                YGtBatch = this.getFullYGt().getSlice(rIdxStart, rIdxEnd,
-                                                      0, this.getFullYGt().getShape().getNumCols());
-            } catch(Exception e)
-            {
-                System.err.println("[ERROR] BatchIterator.next: caught");
-                e.printStackTrace();
-                System.exit(-1);
-            }
 
             this.setCurrentBatchIdx(this.getCurrentBatchIdx() + 1);
-            return new Pair<Matrix, Matrix>(XBatch, YGtBatch);
+            return new Batch(this.getDataset(), rIdxStart, rIdxEnd);
         }
     }
 
@@ -82,6 +168,16 @@ public class Dataset
     private final long      batchSize;
     private final Random    rng;
 
+    // row order of the current epoch. shuffle() permutes this instead of moving rows of X and YGt around
+    private final int[]     permutation;
+    private boolean         isShuffled;
+
+    // reusable batch storage: one pair for full batches and one for the (possibly smaller) last batch
+    private Matrix          XBatch;
+    private Matrix          YGtBatch;
+    private Matrix          XLastBatch;
+    private Matrix          YGtLastBatch;
+
     public Dataset(final Matrix X,
                    final Matrix YGt,
                    final long batchSize,
@@ -91,49 +187,79 @@ public class Dataset
         this.YGt = YGt;
         this.batchSize = batchSize;
         this.rng = rng;
+
+        this.permutation = new int[X.getShape().getNumRows()];
+        for(int idx = 0; idx < this.permutation.length; ++idx)
+        {
+            this.permutation[idx] = idx;
+        }
+        this.isShuffled = false;
+
+        this.XBatch = null;
+        this.YGtBatch = null;
+        this.XLastBatch = null;
+        this.YGtLastBatch = null;
     }
 
     protected final Matrix getFullX() { return this.X; }
     protected final Matrix getFullYGt() { return this.YGt; }
     public final long getBatchSize() { return this.batchSize; }
     protected final Random getRandom() { return this.rng; }
+    protected final int[] getPermutation() { return this.permutation; }
+    public boolean isShuffled() { return this.isShuffled; }
 
-    public BatchIterator iterator() { return new BatchIterator(this.getFullX(),
-                                                               this.getFullYGt(),
-                                                               this.getBatchSize(),
-                                                               this.size()); }
+    // reusable (numRows x numCols) batch matrices, allocated the first time a batch of that size is requested
+    protected Matrix getXBatch(int numRows)
+    {
+        if(numRows == this.getBatchSize())
+        {
+            if(this.XBatch == null)
+            {
+                this.XBatch = Matrix.zeros(numRows, this.getFullX().getShape().getNumCols());
+            }
+            return this.XBatch;
+        }
+        if(this.XLastBatch == null || this.XLastBatch.getShape().getNumRows() != numRows)
+        {
+            this.XLastBatch = Matrix.zeros(numRows, this.getFullX().getShape().getNumCols());
+        }
+        return this.XLastBatch;
+    }
 
-    public void shuffle()
+    protected Matrix getYGtBatch(int numRows)
     {
-        try
+        if(numRows == this.getBatchSize())
         {
-            // shuffle elements
-            int randIdx = -1;
-            Matrix tmp = null;
-            for(int idx = 0; idx < this.getFullX().getShape().getNumRows(); ++idx)
+            if(this.YGtBatch == null)
             {
-                randIdx = this.getRandom().nextInt(idx + 1);
-
-                // swap row in X
-                tmp = this.getFullX().getRow(randIdx);
-                this.getFullX().copySlice(randIdx, randIdx + 1, 0, this.getFullX().getShape().getNumCols(),
-                                          this.getFullX().getRow(idx));
-                this.getFullX().copySlice(idx, idx + 1, 0, this.getFullX().getShape().getNumCols(),
-                                          tmp);
-
-                // now swap row in YGt
-                tmp = this.getFullYGt().getRow(randIdx);
-                this.getFullYGt().copySlice(randIdx, randIdx + 1, 0, this.getFullYGt().getShape().getNumCols(),
-                                            this.getFullYGt().getRow(idx));
-                this.getFullYGt().copySlice(idx, idx + 1, 0, this.getFullYGt().getShape().getNumCols(),
-                                            tmp);
+                this.YGtBatch = Matrix.zeros(numRows, this.getFullYGt().getShape().getNumCols());
             }
-        } catch(Exception e)
+            return this.YGtBatch;
+        }
+        if(this.YGtLastBatch == null || this.YGtLastBatch.getShape().getNumRows() != numRows)
+        {
+            this.YGtLastBatch = Matrix.zeros(numRows, this.getFullYGt().getShape().getNumCols());
+        }
+        return this.YGtLastBatch;
+    }
+
+    public BatchIterator iterator() { return new BatchIterator(this,
+                                                               this.getBatchSize(),
+                                                               this.size()); }
+
+    // Fisher-Yates shuffle of the row order. X and YGt themselves never move.
+    public void shuffle()
+    {
+        int[] permutation = this.getPermutation();
+        for(int idx = permutation.length - 1; idx > 0; --idx)
         {
-            System.err.println("[ERROR] Dataset.shuffle: caught");
-            e.printStackTrace();
-            System.exit(-1);
+            int randIdx = this.getRandom().nextInt(idx + 1);
+
+            int tmp = permutation[randIdx];
+            permutation[randIdx] = permutation[idx];
+            permutation[idx] = tmp;
         }
+        this.isShuffled = true;
     }
 
     public long size()
@@ -0,0 +1,97 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.util.Random;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.linalg.Matrix;
+import edu.bu.cp.nn.Model;
+
+
+import src.labs.cp.Main;
+import src.labs.cp.ReplayBuffer;
+
+
+/**
+ * Compares the PER_SAMPLE and BATCHED bellman target computations of ReplayBuffer as the buffer grows.
+ * Run with:
+ *      java -cp "./lib/*:." src.labs.cp.GroundTruthBenchmark [numRepeats]
+ */
+public class GroundTruthBenchmark
+    extends Object
+{
+    public static final int[]   BUFFER_SIZES = new int[]{1280, 5120, 20480, 81920};
+    public static final int     DIM = 4;
+    public static final double  GAMMA = 0.99;
+    public static final double  TERMINAL_PROB = 0.05;
+
+    public static ReplayBuffer makeFullBuffer(ReplayBuffer.TargetComputationType targetType,
+                                              int maxBufferSize,
+                                              int dim,
+                                              long seed)
+    {
+        Random rng = new Random(seed);
+        ReplayBuffer rb = new ReplayBuffer(ReplayBuffer.ReplacementType.OLDEST, targetType,
+                                           maxBufferSize, dim, rng);
+        for(int idx = 0; idx < maxBufferSize; ++idx)
+        {
+            Matrix prevState = Matrix.randn(1, dim, rng);
+            Matrix nextState = rng.nextDouble() < TERMINAL_PROB ? null : Matrix.randn(1, dim, rng);
+            rb.addSample(prevState, 1.0, nextState);
+        }
+        return rb;
+    }
+
+    // returns the average time (in ms) of one getGroundTruth call
+    public static double time(ReplayBuffer rb,
+                              Model qFunction,
+                              int numRepeats)
+    {
+        // warmup so that we aren't timing the jit
+        for(int idx = 0; idx < 2; ++idx)
+        {
+            rb.getGroundTruth(qFunction, GAMMA);
+        }
+
+        long start = System.nanoTime();
+        for(int idx = 0; idx < numRepeats; ++idx)
+        {
+            rb.getGroundTruth(qFunction, GAMMA);
+        }
+        return (System.nanoTime() - start) / (1e6 * numRepeats);
+    }
+
+    public static void main(String[] args)
+    {
+        int numRepeats = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        Model qFunction = Main.initQFunction();
+
+        System.out.println("maxBufferSize\tper_sample(ms)\tbatched(ms)\tspeedup\tmax|diff|");
+        for(int maxBufferSize : BUFFER_SIZES)
+        {
+            ReplayBuffer perSample = makeFullBuffer(ReplayBuffer.TargetComputationType.PER_SAMPLE,
+                                                    maxBufferSize, DIM, Main.SEED);
+            ReplayBuffer batched = makeFullBuffer(ReplayBuffer.TargetComputationType.BATCHED,
+                                                  maxBufferSize, DIM, Main.SEED);
+
+            // both modes must agree before we bother comparing their speed
+            Matrix yPerSample = perSample.getGroundTruth(qFunction, GAMMA);
+            Matrix yBatched = batched.getGroundTruth(qFunction, GAMMA);
+            double maxDiff = 0;
+            for(int rIdx = 0; rIdx < maxBufferSize; ++rIdx)
+            {
+                maxDiff = Math.max(maxDiff, Math.abs(yPerSample.get(rIdx, 0) - yBatched.get(rIdx, 0)));
+            }
+
+            double perSampleMs = time(perSample, qFunction, numRepeats);
+            double batchedMs = time(batched, qFunction, numRepeats);
+
+            System.out.println(maxBufferSize + "\t" + String.format("%.3f", perSampleMs)
+                + "\t" + String.format("%.3f", batchedMs)
+                + "\t" + String.format("%.2fx", perSampleMs / batchedMs)
+                + "\t" + maxDiff);
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.function.BiPredicate;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -36,16 +37,52 @@ import edu.bu.cp.utils.Pair;
 
 
 import src.labs.cp.ReplayBuffer;
+import src.labs.cp.TransitionStorage;
+import src.labs.cp.MappedTransitionStorage;
 import src.labs.cp.Dataset;
+import src.labs.cp.TrainingMetrics;
+import src.labs.cp.CheckpointWriter;
+import src.labs.cp.CompiledQFunction;
+import src.labs.cp.CycleScheduler;
 
 
 public class Main
     extends Object
 {
     public static final long SEED = 12345;
-    private static double EPSILON        = 1.0;   // start fully exploratory
-    private static final double EPS_MIN  = 0.05;  // floor
-    private static final double EPS_DECAY = 0.990; // multiplicative decay per episode
+    public static final double EPS_START = 1.0;   // start fully exploratory
+    public static final double EPS_MIN  = 0.05;  // floor
+    public static final double EPS_DECAY = 0.990; // multiplicative decay per episode
+
+    // epsilon and the per-phase timers (disabled unless --metricsFile is given) belong to a run, not to the jvm,
+    // so that several runs can train side by side (see SweepRunner). Threads started by a run (e.g. pipeline
+    // actors) inherit its values.
+    private static final InheritableThreadLocal<Double> EPSILON = new InheritableThreadLocal<Double>()
+    {
+        @Override
+        protected Double initialValue() { return EPS_START; }
+    };
+    private static final InheritableThreadLocal<TrainingMetrics> METRICS = new InheritableThreadLocal<TrainingMetrics>()
+    {
+        @Override
+        protected TrainingMetrics initialValue() { return TrainingMetrics.disabled(); }
+    };
+
+    public static double getEpsilon() { return EPSILON.get(); }
+    public static void setEpsilon(double d) { EPSILON.set(d); }
+    public static TrainingMetrics getMetrics() { return METRICS.get(); }
+    public static void setMetrics(TrainingMetrics metrics) { METRICS.set(metrics); }
+
+    // epsilon after numEpisodes more episodes of decay starting from startEpsilon
+    public static double decayEpsilon(double startEpsilon,
+                                      long numEpisodes)
+    {
+        if(startEpsilon <= EPS_MIN)
+        {
+            return startEpsilon;
+        }
+        return Math.max(startEpsilon * Math.pow(EPS_DECAY, numEpisodes), EPS_MIN);
+    }
 
     // a tiny 1-hidden-layer network. This will work
     public static Model initQFunction()
@@ -90,8 +127,28 @@ public class Main
     }
 
 
-    public static void train(Game game,         // world
-                             Model qFunction,   // neural network
+    // same as argmax(Matrix) but for an arbitrary row of a (batched) q-value matrix
+    public static int argmax(Matrix qValues,
+                             int rowIdx) throws IndexOutOfBoundsException
+    {
+        double maxVal = qValues.get(rowIdx, 0);
+        int action = 0;
+
+        for(int colIdx = 1; colIdx < qValues.getShape().getNumCols(); ++colIdx)
+        {
+            double qVal = qValues.get(rowIdx, colIdx);
+            if(qVal > maxVal)
+            {
+                maxVal = qVal;
+                action = colIdx;
+            }
+        }
+        return action;
+    }
+
+
+    public static void train(Game game,                 // world
+                             CompiledQFunction policy,  // (compiled) neural network
                              ReplayBuffer rb,   // replay buffer (to populate)
                              Namespace ns)      // namespace of command line arguments
     {
@@ -113,20 +170,18 @@ public class Main
             {
                 /* ---- 2.  ε‑greedy action ---- */
                 int action;
-                if (rng.nextDouble() < EPSILON) {
+                if (rng.nextDouble() < getEpsilon()) {
                     action = rng.nextInt(2);             // explore
                 } else {
-                    try {
-                        action = argmax(qFunction.forward(state)); // exploit
-                    } catch (Exception e) {
-                        System.err.println("Main.train: q‑function forward error");
-                        e.printStackTrace();
-                        action = rng.nextInt(2);          // fall back to random
-                    }
+                    long start = getMetrics().start();
+                    action = policy.act(state);          // exploit
+                    getMetrics().stop(TrainingMetrics.Phase.ACTION_SELECTION, start);
                 }
 
                 /* ---- 3.  Environment step ---- */
+                long stepStart = getMetrics().start();
                 Triple<Matrix, Double, Boolean> obs = game.step(action);
+                getMetrics().stop(TrainingMetrics.Phase.ENV_STEP, stepStart);
                 Matrix nextState = obs.getFirst();       // may be null on terminal
                 double reward    = obs.getSecond();
                 done             = obs.getThird();
@@ -141,13 +196,81 @@ public class Main
             }
 
             /* ---- 5.  Decay ε after each episode ---- */
-            if (EPSILON > EPS_MIN)
-                EPSILON = Math.max(EPSILON * EPS_DECAY, EPS_MIN);
+            setEpsilon(decayEpsilon(getEpsilon(), 1));
         }
 
     }
 
+    // vectorized version of train: plays numTrainingGames games spread across the games of envs (which are stepped
+    // in lockstep), picking epsilon-greedy actions for every game with one forward pass per step and adding each
+    // step's transitions to the replay buffer in one batch. Games that end are reset right away (by envs).
+    public static void trainVectorized(VectorizedGame envs,    // N worlds
+                                       Model qFunction,        // neural network
+                                       ReplayBuffer rb,        // replay buffer (to populate)
+                                       Random rng,             // random number generator
+                                       Namespace ns)           // namespace of command line arguments
+    {
+        long numTrainingGames = ns.get("numTrainingGames");
+        int numGames = envs.getNumGames();
+
+        int[] actions = new int[numGames];
+        boolean[] shouldExplore = new boolean[numGames];
+
+        long numFinishedGames = 0;
+        while(numFinishedGames < numTrainingGames)
+        {
+            /* ---- 1.  ε‑greedy actions for every game (one forward pass if anyone exploits) ---- */
+            boolean anyExploit = false;
+            for(int gIdx = 0; gIdx < numGames; ++gIdx)
+            {
+                shouldExplore[gIdx] = rng.nextDouble() < getEpsilon();
+                anyExploit = anyExploit || !shouldExplore[gIdx];
+            }
+
+            Matrix qValues = null;
+            if(anyExploit)
+            {
+                try
+                {
+                    long start = getMetrics().start();
+                    qValues = qFunction.forward(envs.getStates());
+                    getMetrics().stop(TrainingMetrics.Phase.ACTION_SELECTION, start);
+                } catch(Exception e)
+                {
+                    System.err.println("Main.trainVectorized: q‑function forward error");
+                    e.printStackTrace();
+                }
+            }
+
+            for(int gIdx = 0; gIdx < numGames; ++gIdx)
+            {
+                actions[gIdx] = (shouldExplore[gIdx] || qValues == null)
+                    ? rng.nextInt(2)
+                    : argmax(qValues, gIdx);
+            }
+
+            /* ---- 2.  Step every game and store all of the transitions at once ---- */
+            long stepStart = getMetrics().start();
+            envs.step(actions);
+            getMetrics().stop(TrainingMetrics.Phase.ENV_STEP, stepStart, numGames);
+            rb.addSamples(envs.getStates(), envs.getRewards(), envs.getNextStates(), envs.getIsDone());
+
+            /* ---- 3.  Decay ε after each finished episode ---- */
+            for(int gIdx = 0; gIdx < numGames; ++gIdx)
+            {
+                if(envs.getIsDone()[gIdx])
+                {
+                    numFinishedGames += 1;
+                    setEpsilon(decayEpsilon(getEpsilon(), 1));
+                }
+            }
+
+            envs.advance();
+        }
+    }
+
     public static void update(Model qFunction,      // neural network
+                              Model targetQFunction,// frozen copy of qFunction used for targets (or null)
                               Optimizer opt,        // SGD or Adam in this implementation
                               LossFunction lf,      // loss function (mean squared error)
                               ReplayBuffer rb,      // replay buffer
@@ -158,8 +281,16 @@ public class Main
         int batchSize = ns.get("miniBatchSize");
         int numUpdates = ns.get("numUpdates");
 
+        if(rb.getSamplingType() == ReplayBuffer.SamplingType.PRIORITIZED || ns.getBoolean("streamingUpdates"))
+        {
+            updateStreaming(qFunction, targetQFunction, opt, lf, rb, ns);
+            return;
+        }
+
         // make supervised learning dataset from our replay buffer
-        Pair<Matrix, Matrix> trainingData = rb.getTrainingData(qFunction, gamma);
+        // (bellman targets come from the target network if we have one)
+        Pair<Matrix, Matrix> trainingData = rb.getTrainingData(targetQFunction != null ? targetQFunction : qFunction,
+                                                               gamma);
 
         Matrix X = trainingData.getFirst();
         Matrix YGt = trainingData.getSecond();
@@ -178,36 +309,130 @@ public class Main
             while(it.hasNext())
             {
 
-                // gimme a batch
-                Pair<Matrix, Matrix> batch = it.next();
+                // gimme a batch (a view over the dataset, rows are only gathered if the model needs a copy)
+                Dataset.Batch batch = it.next();
 
+                long start = getMetrics().start();
                 try
                 {
+                    Matrix XBatch = batch.getX();
+
                     // get predictions
-                    Matrix YHat = qFunction.forward(batch.getFirst());
+                    Matrix YHat = qFunction.forward(XBatch);
 
                     // a pytorch-esque gradient descent update api
                     opt.reset();
-                    qFunction.backwards(batch.getFirst(),
-                                        lf.backwards(YHat, batch.getSecond()));
+                    qFunction.backwards(XBatch,
+                                        lf.backwards(YHat, batch.getYGt()));
                     opt.step();
                 } catch(Exception e)
                 {
                     e.printStackTrace();
                     System.exit(-1);
                 }            
+                getMetrics().stop(TrainingMetrics.Phase.UPDATE, start);
             }
         }
 
     }
 
-    public static Pair<Double, Double> test(Game game, Model qFunction, Namespace ns)
+    // scale row i of grads by weights[i] (used to apply importance sampling weights to dLoss/dYHat)
+    public static Matrix scaleRows(Matrix grads,
+                                   Matrix weights) throws IndexOutOfBoundsException
+    {
+        for(int rIdx = 0; rIdx < grads.getShape().getNumRows(); ++rIdx)
+        {
+            double w = weights.get(rIdx, 0);
+            for(int cIdx = 0; cIdx < grads.getShape().getNumCols(); ++cIdx)
+            {
+                grads.set(rIdx, cIdx, grads.get(rIdx, cIdx) * w);
+            }
+        }
+        return grads;
+    }
+
+    // streaming version of update: instead of turning the whole buffer into a dataset we draw minibatches
+    // (and compute their targets) straight from the replay buffer, so memory scales with the batch size.
+    // By default we perform the same number of gradient steps that numUpdates epochs would.
+    // When the buffer is prioritized, minibatches are drawn proportionally to their TD error and the gradients
+    // are scaled by their importance sampling weights.
+    public static void updateStreaming(Model qFunction,
+                                       Model targetQFunction,
+                                       Optimizer opt,
+                                       LossFunction lf,
+                                       ReplayBuffer rb,
+                                       Namespace ns)
+    {
+        double gamma = ns.get("gamma");
+        double beta = ns.get("perBeta");
+        int batchSize = ns.get("miniBatchSize");
+        long numBatches = getNumMinibatches(rb, ns);
+
+        ReplayBuffer.MinibatchSampler sampler = rb.sampler(targetQFunction != null ? targetQFunction : qFunction,
+                                                           gamma, batchSize, numBatches, beta);
+        while(sampler.hasNext())
+        {
+            trainStep(qFunction, opt, lf, rb, sampler.next());
+        }
+    }
+
+    // number of minibatches an update draws from rb: --numMinibatches, or numUpdates epochs worth of them
+    public static long getNumMinibatches(ReplayBuffer rb,
+                                         Namespace ns)
+    {
+        int batchSize = ns.get("miniBatchSize");
+        int numUpdates = ns.get("numUpdates");
+        long numBatches = ns.get("numMinibatches");
+        if(numBatches <= 0)
+        {
+            numBatches = (long)numUpdates * ((rb.size() + batchSize - 1) / batchSize);
+        }
+        return numBatches;
+    }
+
+    // one gradient descent step on a minibatch drawn from the replay buffer
+    public static void trainStep(Model qFunction,
+                                 Optimizer opt,
+                                 LossFunction lf,
+                                 ReplayBuffer rb,
+                                 ReplayBuffer.Minibatch batch)
+    {
+        long start = getMetrics().start();
+        try
+        {
+            Matrix YHat = qFunction.forward(batch.getX());
+
+            // the TD errors of this prediction become the new priorities of the sampled rows (if prioritized)
+            rb.updatePriorities(batch, YHat);
+
+            Matrix dLdYHat = lf.backwards(YHat, batch.getYGt());
+            if(batch.getWeights() != null)
+            {
+                dLdYHat = scaleRows(dLdYHat, batch.getWeights());
+            }
+
+            opt.reset();
+            qFunction.backwards(batch.getX(), dLdYHat);
+            opt.step();
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        getMetrics().stop(TrainingMetrics.Phase.UPDATE, start);
+    }
+
+    public static Pair<Double, Double> test(Game game, CompiledQFunction policy, Namespace ns)
     {
         long numEvalGames = ns.get("numEvalGames");
         double gamma = ns.get("gamma");
+        int maxGameLength = ns.get("maxEvalGameLength");
+        int minNumEvalGames = ns.get("minEvalGames");
+        double evalTolerance = ns.get("evalTolerance");
 
         double numGames = 0;
         double trajectoryUtilitySum = 0;
+        double trajectoryUtilitySqSum = 0;
 
         double gameLengthSum = 0;
 
@@ -223,18 +448,10 @@ public class Main
 
             boolean isDone = false;
             int t = 0;
-            while(!isDone)
+            while(!isDone && (maxGameLength <= 0 || t < maxGameLength))
             {
                 // ask the q function to rank each action and then listen to it (i.e. argmax for policy)
-                try
-                {
-                    Matrix qValues = qFunction.forward(state);
-                    action = argmax(qValues);
-                } catch(Exception e)
-                {
-                    System.err.println("Main.main: error caught using qFunction");
-                    e.printStackTrace();
-                }
+                action = policy.act(state);
 
                 // step the game
                 Triple<Matrix, Double, Boolean> obs = game.step(action);
@@ -252,17 +469,26 @@ public class Main
 
             // update numerator for avg trajectory utility
             trajectoryUtilitySum += trajectoryUtility;
+            trajectoryUtilitySqSum += trajectoryUtility * trajectoryUtility;
             gameLengthSum += t;
             numGames += 1;
+
+            // stop once we're confident enough in the avg utility (sequential test)
+            if(evalTolerance > 0 && numGames >= minNumEvalGames
+               && CycleScheduler.isConfident((long)numGames, trajectoryUtilitySum, trajectoryUtilitySqSum,
+                                             evalTolerance))
+            {
+                break;
+            }
         }
 
         return new Pair<Double, Double>(trajectoryUtilitySum / numGames, gameLengthSum / numGames);
     }
 
 
-    public static void main(String[] args)
+    // the command line arguments of Main (SweepRunner builds every trial's arguments with this too)
+    public static ArgumentParser makeArgumentParser()
     {
-
         ArgumentParser parser = ArgumentParsers.newFor("Main").build()
             .defaultHelp(true)
             .description("Play openai-gym Deterministic Mountain Car in Java");
@@ -280,7 +506,56 @@ public class Main
             .type(Long.class)
             .setDefault(5l)
             .help("the number of evaluation games to play while fixing the agent " +
-                  "(the agent can't learn from these games)");
+                  "(the agent can't learn from these games). The most eval games played if --evalTolerance > 0");
+
+        parser.addArgument("--maxEvalGameLength")
+            .type(Integer.class)
+            .setDefault(500)
+            .help("eval games are cut off after this many steps (the usual cartpole cap). If 0, eval games are " +
+                  "played until the pole falls");
+        parser.addArgument("--minEvalGames")
+            .type(Integer.class)
+            .setDefault(5)
+            .help("when --evalTolerance > 0, at least this many eval games are played (and parallel eval plays " +
+                  "its games in rounds of this many)");
+        parser.addArgument("--evalTolerance")
+            .type(Double.class)
+            .setDefault(0d)
+            .help("if > 0, stop playing eval games (before --numEvalGames) once the 95% confidence interval of " +
+                  "avg(utility) is within this fraction of avg(utility). If 0, every eval game is played");
+
+        parser.addArgument("--plateauWindow")
+            .type(Integer.class)
+            .setDefault(0)
+            .help("if > 0, stop training (before --numCycles) once the best avg(utility) of the last this many " +
+                  "cycles is no more than --plateauDelta better than the best avg(utility) before them");
+        parser.addArgument("--plateauDelta")
+            .type(Double.class)
+            .setDefault(0d)
+            .help("how much avg(utility) has to improve over --plateauWindow cycles to not be a plateau");
+        parser.addArgument("--successGameLength")
+            .type(Double.class)
+            .setDefault(0d)
+            .help("if > 0, stop training once avg(game_length) in eval reaches this (e.g. --maxEvalGameLength)");
+
+        parser.addArgument("--numEnvs")
+            .type(Integer.class)
+            .setDefault(1)
+            .help("the number of training games to play in lockstep (sharing one forward pass per step). " +
+                  "If 1, training games are played one after another");
+
+        parser.addArgument("--numActors")
+            .type(Integer.class)
+            .setDefault(0)
+            .help("if > 0, run training as a pipeline: this many actor threads play training games with a " +
+                  "periodically refreshed copy of the q-function while a learner thread keeps updating it " +
+                  "(instead of alternating between playing and updating). Once the actors are done the " +
+                  "learner keeps updating until it has made at least as many updates as --numMinibatches " +
+                  "(or --numUpdates epochs) would");
+        parser.addArgument("--policyRefreshFreq")
+            .type(Integer.class)
+            .setDefault(50)
+            .help("when pipelined, the learner publishes its parameters to the actors every this many updates");
 
         // replay buffer config
         parser.addArgument("-b", "--maxBufferSize")
@@ -292,6 +567,48 @@ public class Main
             .type(ReplayBuffer.ReplacementType.class)
             .setDefault(ReplayBuffer.ReplacementType.RANDOM)
             .help("replay buffer replacement type for when a new sample is added to a full buffer");
+        parser.addArgument("--replayStorage")
+            .type(TransitionStorage.Type.class)
+            .setDefault(TransitionStorage.Type.FLOAT64)
+            .help("how the (in-memory) replay buffer stores transitions: MATRIX (Matrix objects), FLOAT64 (flat " +
+                  "double arrays), or FLOAT32 (flat float arrays: half the memory at float precision). " +
+                  "Ignored if --replayFile is given");
+        parser.addArgument("--replayFile")
+            .type(String.class)
+            .setDefault("")
+            .help("if not empty, the replay buffer is stored in this memory-mapped file instead of on the heap. " +
+                  "The file is created if it doesn't exist and reopened (with every transition in it) otherwise, " +
+                  "so resuming with --inFile/--outOffset keeps the old buffer. It is flushed whenever the model " +
+                  "is saved");
+        parser.addArgument("--targetComputationType")
+            .type(ReplayBuffer.TargetComputationType.class)
+            .setDefault(ReplayBuffer.TargetComputationType.BATCHED)
+            .help("how the replay buffer computes bellman targets: one forward pass per transition (PER_SAMPLE) " +
+                  "or a single forward pass over every non-terminal next state (BATCHED)");
+        parser.addArgument("--samplingType")
+            .type(ReplayBuffer.SamplingType.class)
+            .setDefault(ReplayBuffer.SamplingType.UNIFORM)
+            .help("how training data is drawn from the replay buffer: the whole buffer every epoch (UNIFORM) " +
+                  "or minibatches sampled proportionally to their TD error (PRIORITIZED)");
+        parser.addArgument("--perAlpha")
+            .type(Double.class)
+            .setDefault(ReplayBuffer.DEFAULT_PRIORITY_ALPHA)
+            .help("prioritized replay exponent: P(i) ~ |TD error|^alpha (0 is uniform sampling)");
+        parser.addArgument("--perBeta")
+            .type(Double.class)
+            .setDefault(0.4)
+            .help("prioritized replay importance sampling exponent (1 fully corrects for the sampling bias)");
+        parser.addArgument("--streamingUpdates")
+            .action(Arguments.storeTrue())
+            .help("instead of copying the whole replay buffer into a dataset every update, draw random minibatches " +
+                  "straight out of the replay buffer and compute their targets one batch at a time " +
+                  "(always on when --samplingType is PRIORITIZED)");
+        parser.addArgument("--numMinibatches")
+            .type(Long.class)
+            .setDefault(0l)
+            .help("number of minibatches to draw per update when streaming from the replay buffer. " +
+                  "If 0, --numUpdates epochs worth of minibatches (numUpdates * bufferSize / miniBatchSize) " +
+                  "are drawn. Also the minimum number of learner updates per cycle when pipelined");
 
         // neural network training hyperparams
         parser.addArgument("-u", "--numUpdates")
@@ -329,7 +646,32 @@ public class Main
             .setDefault(1e-4)
             .help("discount factor for the Bellman equation if using the TrainerAgent.");
 
+        parser.addArgument("--nStep")
+            .type(Integer.class)
+            .setDefault(1)
+            .help("bellman targets use n-step returns: r_t + gamma r_{t+1} + ... + gamma^{n-1} r_{t+n-1} + " +
+                  "gamma^n max_a' Q(s_{t+n}, a'). 1 is the usual one-step target");
+        parser.addArgument("--targetSyncFreq")
+            .type(Long.class)
+            .setDefault(0l)
+            .help("if > 0, bellman targets are computed with a frozen copy of the q-function (a target network) " +
+                  "that is synced with the q-function every this many cycles. Targets are then cached in the " +
+                  "replay buffer until the target network syncs or the transition is overwritten. " +
+                  "If 0, the q-function being trained computes its own targets");
+
+        parser.addArgument("--numEvalThreads")
+            .type(Integer.class)
+            .setDefault(Runtime.getRuntime().availableProcessors())
+            .help("number of fork/join workers used to play the eval games. Every eval game gets its own game " +
+                  "(seeded from --seed), so results don't depend on this value or on the training rng. " +
+                  "If 0, eval games are played one after another using the training game (and its rng)");
+
         // model saving/loading config
+        parser.addArgument("--metricsFile")
+            .type(String.class)
+            .setDefault("")
+            .help("if not empty, time every phase of training (env steps, action selection, target computation, " +
+                  "updates, checkpointing, eval) and append one json record per cycle to this (jsonl) file");
         parser.addArgument("-i", "--inFile")
             .type(String.class)
             .setDefault("")
@@ -339,6 +681,11 @@ public class Main
             .setDefault("./params/qFunction")
             .help("where to save the model to (will append XX.model where XX is the number of training/eval " +
                   "cycles performed if using the TrainerAgent.");
+        parser.addArgument("--numCheckpointsToKeep")
+            .type(Integer.class)
+            .setDefault(0)
+            .help("if > 0, only the most recent this many checkpoints (plus the one with the best eval utility) " +
+                  "are kept, older ones are deleted. If 0, every checkpoint is kept");
         parser.addArgument("--outOffset")
             .type(Long.class)
             .setDefault(0l)
@@ -353,7 +700,22 @@ public class Main
                 .help("random seed to make successive runs repeatable. If -1l, no seed is used");
         
 
-        Namespace ns = parser.parseArgsOrFail(args);
+        return parser;
+    }
+
+    /**
+     * Trains (and evaluates) a q-function the way the command line arguments in ns say to and returns
+     * (avg utility, avg game length) of the eval after every cycle. Everything the run touches (game, rng, model,
+     * replay buffer, epsilon, metrics) is its own, so runs can happen concurrently on different threads.
+     * If shouldStop isn't null, it is asked after every cycle (with the cycle idx and that cycle's eval) whether
+     * to stop early. If runName isn't empty it prefixes everything printed.
+     */
+    public static List<Pair<Double, Double>> run(String runName,
+                                                 Namespace ns,
+                                                 BiPredicate<Integer, Pair<Double, Double>> shouldStop)
+    {
+        String logPrefix = runName.isEmpty() ? "" : "[" + runName + "] ";
+        List<Pair<Double, Double>> evals = new ArrayList<Pair<Double, Double>>();
 
         long numCycles = ns.get("numCycles");
         long numTrainingGames = ns.get("numTrainingGames");
@@ -368,30 +730,148 @@ public class Main
         Game game = new Game(rng);
         Model qFunction = initQFunction();
 
+        // flattened copy of qFunction for picking actions one state at a time (refreshed after every update)
+        CompiledQFunction policy = CompiledQFunction.compile(qFunction);
+
         // feel free to change the optimizer if you want
         // but if you change it to Adam be sure to include the command line arguments for Adam!
         Optimizer opt = new SGDOptimizer(qFunction.getParameters(), ns.get("lr"));
         LossFunction lf = new MeanSquaredError();
 
-        ReplayBuffer rb = new ReplayBuffer(ns.get("replacementType"), ns.get("maxBufferSize"), 4, rng);
+        // keep the replay buffer in a memory-mapped file if asked to (so that it survives restarts)
+        String replayFile = ns.get("replayFile");
+        TransitionStorage storage = replayFile.isEmpty()
+            ? TransitionStorage.create(ns.get("replayStorage"), ns.get("maxBufferSize"), 4)
+            : MappedTransitionStorage.open(replayFile, ns.get("replacementType"), ns.get("maxBufferSize"), 4);
+        ReplayBuffer rb = new ReplayBuffer(ns.get("replacementType"), ns.get("targetComputationType"),
+                                           ns.get("samplingType"), storage, rng);
+        if(rb.size() > 0)
+        {
+            System.out.println(logPrefix + "[INFO] Main.run: reopened replay buffer " + replayFile + " with "
+                + rb.size() + " transitions");
+        }
+        rb.setPriorityAlpha(ns.get("perAlpha"));
+        rb.setNStep(ns.get("nStep"), ns.get("gamma"));
+
+        setEpsilon(EPS_START);
+        String metricsFile = ns.get("metricsFile");
+        setMetrics(metricsFile.isEmpty() ? TrainingMetrics.disabled() : new TrainingMetrics(true));
+        rb.setMetrics(getMetrics());
+
+        // optional target network (and the target caching that it makes possible)
+        long targetSyncFreq = ns.get("targetSyncFreq");
+        Model targetQFunction = null;
+        if(targetSyncFreq > 0)
+        {
+            targetQFunction = initQFunction();
+            ModelSnapshot.of(qFunction).loadInto(targetQFunction);
+            rb.setCachingTargets(true);
+        }
+
+        int numEnvs = ns.get("numEnvs");
+        VectorizedGame envs = numEnvs > 1 ? new VectorizedGame(numEnvs, rng) : null;
+
+        int numActors = ns.get("numActors");
+        ActorLearnerPipeline pipeline = numActors > 0
+            ? new ActorLearnerPipeline(qFunction, targetQFunction, opt, lf, rb, rng, ns)
+            : null;
+
+        int numEvalThreads = ns.get("numEvalThreads");
+        ParallelEvaluator evaluator = numEvalThreads > 0 ? new ParallelEvaluator(numEvalThreads, seed) : null;
+        if(evaluator != null)
+        {
+            evaluator.setMaxGameLength(ns.get("maxEvalGameLength"));
+            evaluator.setSequentialTest(ns.get("minEvalGames"), ns.get("evalTolerance"));
+        }
+
+        // stop early once eval plateaus or succeeds
+        CycleScheduler scheduler = new CycleScheduler(ns.get("plateauWindow"), ns.get("plateauDelta"),
+                                                      ns.get("successGameLength"));
+
+        // checkpoints are saved in the background (and old ones cleaned up if asked to)
+        CheckpointWriter checkpointWriter = new CheckpointWriter(checkpointFileBase, ns.get("numCheckpointsToKeep"));
 
         for(int cycleIdx = 0; cycleIdx < numCycles; ++cycleIdx)
         {
-            // play a bunch of training games to populate the replay buffer
-            train(game, qFunction, rb, ns);
+            getMetrics().startCycle();
+
+            if(pipeline != null)
+            {
+                // collect data and update the model at the same time
+                pipeline.runCycle();
+            }
+            else
+            {
+                // play a bunch of training games to populate the replay buffer
+                if(envs != null)
+                {
+                    trainVectorized(envs, qFunction, rb, rng, ns);
+                }
+                else
+                {
+                    train(game, policy, rb, ns);
+                }
+
+                // update the model by converting the replay buffer into a supervised learning dataset and doing gd
+                update(qFunction, targetQFunction, opt, lf, rb, rng, ns);
+            }
 
-            // update the model by converting the replay buffer into a supervised learning dataset and doing gd
-            update(qFunction, opt, lf, rb, rng, ns);
+            policy.refresh();
+
+            // sync the target network (which makes every cached target stale)
+            if(targetQFunction != null && (cycleIdx + 1) % targetSyncFreq == 0)
+            {
+                ModelSnapshot.of(qFunction).loadInto(targetQFunction);
+                rb.invalidateTargets();
+            }
 
             // save the model
-            qFunction.save(checkpointFileBase + (cycleIdx + offset) + ".model");
+            long checkpointStart = getMetrics().start();
+            checkpointWriter.submit(cycleIdx + offset, qFunction);
+            rb.flush();
+            getMetrics().stop(TrainingMetrics.Phase.CHECKPOINT, checkpointStart);
 
             // evaluate the model
-            Pair<Double, Double> expectedUtilityAndAvgGameLength = test(game, qFunction, ns);
+            long evalStart = getMetrics().start();
+            Pair<Double, Double> expectedUtilityAndAvgGameLength = evaluator != null
+                ? evaluator.evaluate(qFunction, (int)numEvalGames, ns.get("gamma"))
+                : test(game, policy, ns);
+            getMetrics().stop(TrainingMetrics.Phase.EVAL, evalStart);
             double avgUtil = expectedUtilityAndAvgGameLength.getFirst();
             double avgGameLength = expectedUtilityAndAvgGameLength.getSecond();
 
-            System.out.println("after cycle=" + cycleIdx + " avg(utility)=" + avgUtil + " avg(game_length)=" + avgGameLength);
+            System.out.println(logPrefix + "after cycle=" + cycleIdx + " avg(utility)=" + avgUtil
+                + " avg(game_length)=" + avgGameLength);
+            checkpointWriter.reportEval(cycleIdx + offset, avgUtil);
+            if(getMetrics().isEnabled())
+            {
+                getMetrics().appendJson(metricsFile, cycleIdx, avgUtil, avgGameLength);
+            }
+
+            evals.add(expectedUtilityAndAvgGameLength);
+            if(scheduler.shouldStop(cycleIdx, expectedUtilityAndAvgGameLength))
+            {
+                System.out.println(logPrefix + "stopping after cycle=" + cycleIdx + " (" + scheduler.getStopReason() + ")");
+                break;
+            }
+            if(shouldStop != null && shouldStop.test(cycleIdx, expectedUtilityAndAvgGameLength))
+            {
+                System.out.println(logPrefix + "stopping early after cycle=" + cycleIdx);
+                break;
+            }
+        }
+
+        if(evaluator != null)
+        {
+            evaluator.shutdown();
         }
+        checkpointWriter.close();
+        return evals;
+    }
+
+    public static void main(String[] args)
+    {
+        Namespace ns = makeArgumentParser().parseArgsOrFail(args);
+        run("", ns, null);
     }
 }
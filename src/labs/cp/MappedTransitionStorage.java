@@ -0,0 +1,236 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+
+// JAVA PROJECT IMPORTS
+import src.labs.cp.ReplayBuffer.ReplacementType;
+import src.labs.cp.TransitionStorage;
+
+
+/**
+ * Off-heap, persistent storage: every transition is a fixed-width record in a memory-mapped file, so buffers of
+ * millions of transitions don't count against the heap and survive the jvm exiting. Reopening the same file
+ * (with the same capacity, dim, and replacement type) picks the buffer back up without refilling it.
+ *
+ * File layout (all values little-endian):
+ *      header (HEADER_SIZE bytes):
+ *          int magic, int version, int capacity, int dim, int size, int newestSampleIdx, int replacementType, int pad
+ *      capacity records of (2 * dim + 2) * 4 bytes each:
+ *          float prevState[dim], float reward, float nextState[dim], int isTerminal
+ *
+ * Values are stored as floats, so they come back with float precision.
+ */
+public class MappedTransitionStorage
+    extends TransitionStorage
+{
+    public static final int MAGIC = 0x43505242;     // "CPRB"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int DIM_OFFSET = 12;
+    private static final int SIZE_OFFSET = 16;
+    private static final int NEWEST_SAMPLE_IDX_OFFSET = 20;
+    private static final int REPLACEMENT_TYPE_OFFSET = 24;
+
+    private final int               capacity;
+    private final int               dim;
+    private final int               recordSize;
+    private final MappedByteBuffer  buffer;
+
+    private MappedTransitionStorage(int capacity,
+                                    int dim,
+                                    MappedByteBuffer buffer)
+    {
+        this.capacity = capacity;
+        this.dim = dim;
+        this.recordSize = (2 * dim + 2) * Float.BYTES;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Opens the buffer stored in path, or creates an empty one there if the file doesn't exist yet.
+     * An existing file must have been created with the same capacity, dim, and replacement type.
+     */
+    public static MappedTransitionStorage open(String path,
+                                               ReplacementType type,
+                                               int capacity,
+                                               int dim)
+    {
+        long numBytes = HEADER_SIZE + (long)capacity * (2 * dim + 2) * Float.BYTES;
+        if(numBytes > Integer.MAX_VALUE)
+        {
+            System.err.println("[ERROR] MappedTransitionStorage.open: a buffer of " + capacity + " transitions needs "
+                + numBytes + " bytes, which is more than can be mapped at once");
+            System.exit(-1);
+        }
+
+        MappedTransitionStorage storage = null;
+        boolean isNew = !new File(path).exists();
+        try(FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE,
+                                                   StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            // validate an existing file before mapping it: mapping past the end of the file grows it
+            if(!isNew)
+            {
+                checkHeader(path, channel, type, capacity, dim, numBytes);
+            }
+
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, numBytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            storage = new MappedTransitionStorage(capacity, dim, buffer);
+        } catch(IOException e)
+        {
+            System.err.println("[ERROR] MappedTransitionStorage.open: unable to map " + path);
+            e.printStackTrace();
+            System.exit(-1);
+        }
+
+        if(isNew)
+        {
+            storage.writeHeader(type);
+        }
+        return storage;
+    }
+
+    private MappedByteBuffer getBuffer() { return this.buffer; }
+    private int getRecordSize() { return this.recordSize; }
+
+    private void writeHeader(ReplacementType type)
+    {
+        this.getBuffer().putInt(MAGIC_OFFSET, MAGIC);
+        this.getBuffer().putInt(VERSION_OFFSET, VERSION);
+        this.getBuffer().putInt(CAPACITY_OFFSET, this.getCapacity());
+        this.getBuffer().putInt(DIM_OFFSET, this.getDim());
+        this.setSize(0);
+        this.setNewestSampleIdx(-1);
+        this.getBuffer().putInt(REPLACEMENT_TYPE_OFFSET, type.ordinal());
+        this.flush();
+    }
+
+    // read the header of an existing file through channel (without changing the file) and check it matches
+    private static void checkHeader(String path,
+                                    FileChannel channel,
+                                    ReplacementType type,
+                                    int capacity,
+                                    int dim,
+                                    long numBytes) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if(channel.size() < HEADER_SIZE || channel.read(header, 0) != HEADER_SIZE
+           || header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION)
+        {
+            System.err.println("[ERROR] MappedTransitionStorage.checkHeader: " + path
+                + " is not a (version " + VERSION + ") replay buffer file");
+            System.exit(-1);
+        }
+
+        int fileCapacity = header.getInt(CAPACITY_OFFSET);
+        int fileDim = header.getInt(DIM_OFFSET);
+        int fileType = header.getInt(REPLACEMENT_TYPE_OFFSET);
+        if(fileCapacity != capacity || fileDim != dim || fileType != type.ordinal())
+        {
+            System.err.println("[ERROR] MappedTransitionStorage.checkHeader: " + path + " holds a buffer with"
+                + " capacity=" + fileCapacity + " dim=" + fileDim
+                + " replacementType=" + (fileType >= 0 && fileType < ReplacementType.values().length
+                                         ? ReplacementType.values()[fileType] : fileType)
+                + " but capacity=" + capacity + " dim=" + dim + " replacementType=" + type
+                + " was requested");
+            System.exit(-1);
+        }
+
+        if(channel.size() != numBytes)
+        {
+            System.err.println("[ERROR] MappedTransitionStorage.checkHeader: " + path + " is " + channel.size()
+                + " bytes but a buffer with capacity=" + capacity + " dim=" + dim + " is " + numBytes
+                + " bytes (truncated file?)");
+            System.exit(-1);
+        }
+    }
+
+    private int prevStateOffset(int rowIdx, int colIdx)
+    {
+        return HEADER_SIZE + rowIdx * this.getRecordSize() + colIdx * Float.BYTES;
+    }
+
+    private int rewardOffset(int rowIdx)
+    {
+        return this.prevStateOffset(rowIdx, this.getDim());
+    }
+
+    private int nextStateOffset(int rowIdx, int colIdx)
+    {
+        return this.prevStateOffset(rowIdx, this.getDim() + 1 + colIdx);
+    }
+
+    private int terminalOffset(int rowIdx)
+    {
+        return this.prevStateOffset(rowIdx, 2 * this.getDim() + 1);
+    }
+
+    @Override
+    public int getCapacity() { return this.capacity; }
+    @Override
+    public int getDim() { return this.dim; }
+
+    @Override
+    public int getSize() { return this.getBuffer().getInt(SIZE_OFFSET); }
+    @Override
+    public void setSize(int size) { this.getBuffer().putInt(SIZE_OFFSET, size); }
+    @Override
+    public int getNewestSampleIdx() { return this.getBuffer().getInt(NEWEST_SAMPLE_IDX_OFFSET); }
+    @Override
+    public void setNewestSampleIdx(int rowIdx) { this.getBuffer().putInt(NEWEST_SAMPLE_IDX_OFFSET, rowIdx); }
+
+    @Override
+    public double getPrevState(int rowIdx, int colIdx)
+    {
+        return this.getBuffer().getFloat(this.prevStateOffset(rowIdx, colIdx));
+    }
+
+    @Override
+    public void setPrevState(int rowIdx, int colIdx, double value)
+    {
+        this.getBuffer().putFloat(this.prevStateOffset(rowIdx, colIdx), (float)value);
+    }
+
+    @Override
+    public double getReward(int rowIdx) { return this.getBuffer().getFloat(this.rewardOffset(rowIdx)); }
+    @Override
+    public void setReward(int rowIdx, double value) { this.getBuffer().putFloat(this.rewardOffset(rowIdx), (float)value); }
+
+    @Override
+    public double getNextState(int rowIdx, int colIdx)
+    {
+        return this.getBuffer().getFloat(this.nextStateOffset(rowIdx, colIdx));
+    }
+
+    @Override
+    public void setNextState(int rowIdx, int colIdx, double value)
+    {
+        this.getBuffer().putFloat(this.nextStateOffset(rowIdx, colIdx), (float)value);
+    }
+
+    @Override
+    public boolean isTerminal(int rowIdx) { return this.getBuffer().getInt(this.terminalOffset(rowIdx)) != 0; }
+    @Override
+    public void setTerminal(int rowIdx, boolean isTerminal)
+    {
+        this.getBuffer().putInt(this.terminalOffset(rowIdx), isTerminal ? 1 : 0);
+    }
+
+    @Override
+    public void flush() { this.getBuffer().force(); }
+}
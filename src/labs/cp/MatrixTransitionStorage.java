@@ -0,0 +1,79 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.linalg.Matrix;
+
+
+import src.labs.cp.TransitionStorage;
+
+
+/**
+ * The default (on-heap) storage: s and s' live in (capacity x dim) matrices, rewards in a (capacity x 1) matrix,
+ * and the terminal flags in a boolean mask.
+ */
+public class MatrixTransitionStorage
+    extends TransitionStorage
+{
+    private int         size;
+    private int         newestSampleIdx;
+
+    private Matrix      prevStates;
+    private Matrix      rewards;
+    private Matrix      nextStates;
+    private boolean     isStateTerminalMask[];
+
+    public MatrixTransitionStorage(int numSamples,
+                                   int dim)
+    {
+        this.size = 0;
+        this.newestSampleIdx = -1;
+
+        this.prevStates = Matrix.zeros(numSamples, dim);
+        this.rewards = Matrix.zeros(numSamples, 1);
+        this.nextStates = Matrix.zeros(numSamples, dim);
+        this.isStateTerminalMask = new boolean[numSamples];
+    }
+
+    private Matrix getPrevStates() { return this.prevStates; }
+    private Matrix getNextStates() { return this.nextStates; }
+    private Matrix getRewards() { return this.rewards; }
+    private boolean[] getIsStateTerminalMask() { return this.isStateTerminalMask; }
+
+    @Override
+    public int getCapacity() { return this.getPrevStates().getShape().getNumRows(); }
+    @Override
+    public int getDim() { return this.getPrevStates().getShape().getNumCols(); }
+
+    @Override
+    public int getSize() { return this.size; }
+    @Override
+    public void setSize(int size) { this.size = size; }
+    @Override
+    public int getNewestSampleIdx() { return this.newestSampleIdx; }
+    @Override
+    public void setNewestSampleIdx(int rowIdx) { this.newestSampleIdx = rowIdx; }
+
+    @Override
+    public double getPrevState(int rowIdx, int colIdx) { return this.getPrevStates().get(rowIdx, colIdx); }
+    @Override
+    public void setPrevState(int rowIdx, int colIdx, double value) { this.getPrevStates().set(rowIdx, colIdx, value); }
+
+    @Override
+    public double getReward(int rowIdx) { return this.getRewards().get(rowIdx, 0); }
+    @Override
+    public void setReward(int rowIdx, double value) { this.getRewards().set(rowIdx, 0, value); }
+
+    @Override
+    public double getNextState(int rowIdx, int colIdx) { return this.getNextStates().get(rowIdx, colIdx); }
+    @Override
+    public void setNextState(int rowIdx, int colIdx, double value) { this.getNextStates().set(rowIdx, colIdx, value); }
+
+    @Override
+    public boolean isTerminal(int rowIdx) { return this.getIsStateTerminalMask()[rowIdx]; }
+    @Override
+    public void setTerminal(int rowIdx, boolean isTerminal) { this.getIsStateTerminalMask()[rowIdx] = isTerminal; }
+}
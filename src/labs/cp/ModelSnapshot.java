@@ -0,0 +1,90 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.util.List;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.linalg.Matrix;
+import edu.bu.cp.nn.Model;
+import edu.bu.cp.nn.Parameter;
+
+
+/**
+ * A frozen copy of the values of every Parameter of a model (in model.getParameters() order).
+ * Snapshots are immutable once taken, so they can be handed to other threads or loaded into any number
+ * of models with the same architecture (e.g. to sync a target network with the online q-function).
+ */
+public class ModelSnapshot
+    extends Object
+{
+    private final int[]         numRows;
+    private final int[]         numCols;
+    private final double[][]    values;
+
+    private ModelSnapshot(final int[] numRows,
+                          final int[] numCols,
+                          final double[][] values)
+    {
+        this.numRows = numRows;
+        this.numCols = numCols;
+        this.values = values;
+    }
+
+    public final int getNumParameters() { return this.values.length; }
+    public final int getNumRows(int paramIdx) { return this.numRows[paramIdx]; }
+    public final int getNumCols(int paramIdx) { return this.numCols[paramIdx]; }
+
+    // row-major values of parameter paramIdx. Do not modify!
+    public final double[] getValues(int paramIdx) { return this.values[paramIdx]; }
+
+    public static ModelSnapshot of(Model model)
+    {
+        List<Parameter> params = model.getParameters();
+        int[] numRows = new int[params.size()];
+        int[] numCols = new int[params.size()];
+        double[][] values = new double[params.size()][];
+
+        for(int pIdx = 0; pIdx < params.size(); ++pIdx)
+        {
+            Matrix value = params.get(pIdx).getValue();
+            numRows[pIdx] = value.getShape().getNumRows();
+            numCols[pIdx] = value.getShape().getNumCols();
+            values[pIdx] = new double[numRows[pIdx] * numCols[pIdx]];
+
+            for(int rIdx = 0; rIdx < numRows[pIdx]; ++rIdx)
+            {
+                for(int cIdx = 0; cIdx < numCols[pIdx]; ++cIdx)
+                {
+                    values[pIdx][rIdx * numCols[pIdx] + cIdx] = value.get(rIdx, cIdx);
+                }
+            }
+        }
+        return new ModelSnapshot(numRows, numCols, values);
+    }
+
+    // overwrite the parameters of model (which must have the same architecture) with this snapshot
+    public void loadInto(Model model)
+    {
+        List<Parameter> params = model.getParameters();
+        if(params.size() != this.getNumParameters())
+        {
+            System.err.println("[ERROR] ModelSnapshot.loadInto: snapshot has " + this.getNumParameters()
+                + " parameters but model has " + params.size());
+            System.exit(-1);
+        }
+
+        for(int pIdx = 0; pIdx < params.size(); ++pIdx)
+        {
+            Matrix value = params.get(pIdx).getValue();
+            for(int rIdx = 0; rIdx < this.getNumRows(pIdx); ++rIdx)
+            {
+                for(int cIdx = 0; cIdx < this.getNumCols(pIdx); ++cIdx)
+                {
+                    value.set(rIdx, cIdx, this.getValues(pIdx)[rIdx * this.getNumCols(pIdx) + cIdx]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.game.Game;
+import edu.bu.cp.linalg.Matrix;
+import edu.bu.cp.nn.Model;
+import edu.bu.cp.utils.Pair;
+import edu.bu.cp.utils.Triple;
+
+
+import src.labs.cp.CompiledQFunction;
+import src.labs.cp.CycleScheduler;
+import src.labs.cp.Main;
+import src.labs.cp.ModelSnapshot;
+
+
+/**
+ * Plays evaluation games in parallel on a fork/join pool. Every eval game gets its own Game, seeded from a
+ * SplittableRandom that is split off of the eval seed (in game order, before any work is forked), so eval never
+ * touches the training rng and game i is the same game no matter how many threads there are. Every worker task
+ * plays its games with its own (compiled) copy of the q-function (models cache their inputs, so they can't be shared).
+ * Per-game results are written into arrays indexed by game and summed in game order at the end, so the
+ * averages are bit-for-bit identical regardless of the number of cores.
+ */
+public class ParallelEvaluator
+    extends Object
+{
+    // don't bother forking ranges with fewer games than this
+    public static final int MIN_GAMES_PER_TASK = 4;
+
+    private class EvalTask
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int   gameIdxStart;
+        private final int   gameIdxEnd;
+
+        public EvalTask(int gameIdxStart,
+                        int gameIdxEnd)
+        {
+            this.gameIdxStart = gameIdxStart;
+            this.gameIdxEnd = gameIdxEnd;
+        }
+
+        @Override
+        protected void compute()
+        {
+            int numGames = this.gameIdxEnd - this.gameIdxStart;
+            if(numGames > ParallelEvaluator.this.getGrainSize())
+            {
+                int gameIdxMid = this.gameIdxStart + numGames / 2;
+                invokeAll(new EvalTask(this.gameIdxStart, gameIdxMid),
+                          new EvalTask(gameIdxMid, this.gameIdxEnd));
+                return;
+            }
+
+            Model qFunction = Main.initQFunction();
+            ParallelEvaluator.this.getPolicy().loadInto(qFunction);
+            CompiledQFunction policy = CompiledQFunction.compile(qFunction);
+            for(int gameIdx = this.gameIdxStart; gameIdx < this.gameIdxEnd; ++gameIdx)
+            {
+                ParallelEvaluator.this.playGame(policy, gameIdx);
+            }
+        }
+    }
+
+    private final ForkJoinPool  pool;
+    private final long          seed;
+    private int                 maxGameLength;
+    private int                 minNumEvalGames;
+    private double              evalTolerance;
+
+    // per-eval state
+    private ModelSnapshot       policy;
+    private double              gamma;
+    private int                 grainSize;
+    private long[]              gameSeeds;
+    private double[]            utilities;
+    private long[]              lengths;
+
+    public ParallelEvaluator(int numThreads,
+                             long seed)
+    {
+        this.pool = new ForkJoinPool(numThreads);
+        this.seed = seed;
+        this.maxGameLength = 0;
+        this.minNumEvalGames = 0;
+        this.evalTolerance = 0;
+    }
+
+    public final int getNumThreads() { return this.pool.getParallelism(); }
+    private ForkJoinPool getPool() { return this.pool; }
+    private long getSeed() { return this.seed; }
+    public final int getMaxGameLength() { return this.maxGameLength; }
+    public final int getMinNumEvalGames() { return this.minNumEvalGames; }
+    public final double getEvalTolerance() { return this.evalTolerance; }
+
+    // eval games are cut off after this many steps (0 means never)
+    public void setMaxGameLength(int maxGameLength) { this.maxGameLength = maxGameLength; }
+
+    /**
+     * Play eval games in rounds of minNumEvalGames games and stop as soon as the avg utility is known to within
+     * tolerance (see CycleScheduler.isConfident). Rounds always have the same games in them, so where eval stops
+     * still doesn't depend on the number of threads. A tolerance of 0 plays every eval game.
+     */
+    public void setSequentialTest(int minNumEvalGames,
+                                  double tolerance)
+    {
+        this.minNumEvalGames = minNumEvalGames;
+        this.evalTolerance = tolerance;
+    }
+
+    private ModelSnapshot getPolicy() { return this.policy; }
+    private double getGamma() { return this.gamma; }
+    private int getGrainSize() { return this.grainSize; }
+
+    private void playGame(CompiledQFunction policy,
+                          int gameIdx)
+    {
+        Game game = new Game(new Random(this.gameSeeds[gameIdx]));
+
+        double trajectoryUtility = 0;
+        double discount = 1;
+        long t = 0;
+
+        Matrix state = game.reset();
+        int action = 0;
+        boolean isDone = false;
+        while(!isDone && (this.getMaxGameLength() <= 0 || t < this.getMaxGameLength()))
+        {
+            // ask the q function to rank each action and then listen to it (i.e. argmax for policy)
+            action = policy.act(state);
+
+            Triple<Matrix, Double, Boolean> obs = game.step(action);
+            state = obs.getFirst();
+            isDone = obs.getThird();
+
+            trajectoryUtility += discount * obs.getSecond();
+            discount *= this.getGamma();
+            t += 1;
+        }
+
+        this.utilities[gameIdx] = trajectoryUtility;
+        this.lengths[gameIdx] = t;
+    }
+
+    /**
+     * Plays (up to) numEvalGames greedy games with (a copy of) qFunction and returns
+     * (avg discounted utility, avg game length). The same seed always produces the same eval games.
+     */
+    public Pair<Double, Double> evaluate(Model qFunction,
+                                         int numEvalGames,
+                                         double gamma)
+    {
+        this.policy = ModelSnapshot.of(qFunction);
+        this.gamma = gamma;
+        this.utilities = new double[numEvalGames];
+        this.lengths = new long[numEvalGames];
+
+        // split the game seeds off sequentially so that game i's seed doesn't depend on scheduling
+        SplittableRandom seedRng = new SplittableRandom(this.getSeed());
+        this.gameSeeds = new long[numEvalGames];
+        for(int gameIdx = 0; gameIdx < numEvalGames; ++gameIdx)
+        {
+            this.gameSeeds[gameIdx] = seedRng.split().nextLong();
+        }
+
+        boolean isSequential = this.getEvalTolerance() > 0 && this.getMinNumEvalGames() > 0;
+        int roundSize = isSequential ? this.getMinNumEvalGames() : numEvalGames;
+        this.grainSize = Math.max(MIN_GAMES_PER_TASK, roundSize / (4 * this.getNumThreads()));
+
+        // reduce in game order
+        double trajectoryUtilitySum = 0;
+        double trajectoryUtilitySqSum = 0;
+        double gameLengthSum = 0;
+        int numGames = 0;
+        while(numGames < numEvalGames)
+        {
+            int roundEnd = Math.min(numGames + roundSize, numEvalGames);
+            this.getPool().invoke(new EvalTask(numGames, roundEnd));
+            for(int gameIdx = numGames; gameIdx < roundEnd; ++gameIdx)
+            {
+                trajectoryUtilitySum += this.utilities[gameIdx];
+                trajectoryUtilitySqSum += this.utilities[gameIdx] * this.utilities[gameIdx];
+                gameLengthSum += this.lengths[gameIdx];
+            }
+            numGames = roundEnd;
+
+            if(isSequential && CycleScheduler.isConfident(numGames, trajectoryUtilitySum, trajectoryUtilitySqSum,
+                                                          this.getEvalTolerance()))
+            {
+                break;
+            }
+        }
+
+        return new Pair<Double, Double>(trajectoryUtilitySum / numGames, gameLengthSum / numGames);
+    }
+
+    public void shutdown()
+    {
+        this.getPool().shutdown();
+    }
+}
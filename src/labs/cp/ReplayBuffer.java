@@ -3,7 +3,10 @@ package src.labs.cp;
 
 // SYSTEM IMPORTS
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Random;
 
 
@@ -23,47 +26,426 @@ public class ReplayBuffer
         OLDEST;
     }
 
+    public static final int BATCHED_TARGET_CHUNK_SIZE = 1024;
+
+    public static enum TargetComputationType
+    {
+        PER_SAMPLE,
+        BATCHED;
+    }
+
+    public static final double DEFAULT_PRIORITY_ALPHA = 0.6;
+    public static final double PRIORITY_EPSILON = 1e-6;
+
+    public static enum SamplingType
+    {
+        UNIFORM,        // train on the whole buffer every epoch (see getTrainingData)
+        PRIORITIZED;    // train on minibatches sampled proportionally to |TD error|^alpha
+    }
+
+    /**
+     * A minibatch of transitions pulled out of the buffer: which rows were used, the (batchSize x dim) states,
+     * the (batchSize x 1) bellman targets, and the (batchSize x 1) importance sampling weights
+     * (null when the batch was drawn uniformly).
+     */
+    public static class Minibatch
+        extends Object
+    {
+        private final int[]     rowIdxs;
+        private final Matrix    X;
+        private final Matrix    YGt;
+        private final Matrix    weights;
+
+        public Minibatch(final int[] rowIdxs,
+                         final Matrix X,
+                         final Matrix YGt,
+                         final Matrix weights)
+        {
+            this.rowIdxs = rowIdxs;
+            this.X = X;
+            this.YGt = YGt;
+            this.weights = weights;
+        }
+
+        public final int[] getRowIdxs() { return this.rowIdxs; }
+        public final Matrix getX() { return this.X; }
+        public final Matrix getYGt() { return this.YGt; }
+        public final Matrix getWeights() { return this.weights; }
+    }
+
+    /**
+     * Streams numBatches random minibatches straight out of the buffer's storage. The targets of each batch are
+     * computed when that batch is drawn, so only batchSize rows of states and targets are ever alive at once
+     * (instead of the full copy of the buffer that getTrainingData makes). Uniform buffers draw rows uniformly
+     * at random (with replacement), prioritized buffers draw them with samplePrioritizedBatch.
+     */
+    public static class MinibatchSampler
+        extends Object implements Iterator<Minibatch>
+    {
+        private final ReplayBuffer  replayBuffer;
+        private final Model         qFunction;
+        private final double        discountFactor;
+        private final int           batchSize;
+        private final long          numBatches;
+        private final double        beta;
+        private long                currentBatchIdx;
+
+        public MinibatchSampler(final ReplayBuffer replayBuffer,
+                                final Model qFunction,
+                                final double discountFactor,
+                                final int batchSize,
+                                final long numBatches,
+                                final double beta)
+        {
+            this.replayBuffer = replayBuffer;
+            this.qFunction = qFunction;
+            this.discountFactor = discountFactor;
+            this.batchSize = batchSize;
+            this.numBatches = numBatches;
+            this.beta = beta;
+            this.currentBatchIdx = 0l;
+        }
+
+        protected final ReplayBuffer getReplayBuffer() { return this.replayBuffer; }
+        protected final Model getQFunction() { return this.qFunction; }
+        protected final double getDiscountFactor() { return this.discountFactor; }
+        protected final int getBatchSize() { return this.batchSize; }
+        protected final long getNumBatches() { return this.numBatches; }
+        protected final double getBeta() { return this.beta; }
+        protected long getCurrentBatchIdx() { return this.currentBatchIdx; }
+
+        private void setCurrentBatchIdx(long l) { this.currentBatchIdx = l; }
+
+        @Override
+        public boolean hasNext()
+        {
+            return this.getCurrentBatchIdx() < this.getNumBatches() && this.getReplayBuffer().size() > 0;
+        }
+
+        @Override
+        public Minibatch next()
+        {
+            if(!this.hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            this.setCurrentBatchIdx(this.getCurrentBatchIdx() + 1);
+
+            return this.getReplayBuffer().sampleBatch(this.getQFunction(), this.getDiscountFactor(),
+                                                      this.getBatchSize(), this.getBeta());
+        }
+    }
+
+    /**
+     * The most recent (up to n) transitions of one stream of experience (one game being played) that don't have
+     * n rewards after them yet. Every pending transition keeps its discounted reward sum so far and the discount
+     * the next reward gets, so each new reward is folded in incrementally.
+     */
+    private static class NStepWindow
+        extends Object
+    {
+        private final double[][]    prevStates;     // circular, oldest at head
+        private final double[]      returns;
+        private final double[]      discounts;
+        private int                 head;
+        private int                 count;
+
+        public NStepWindow(int nStep,
+                           int dim)
+        {
+            this.prevStates = new double[nStep][dim];
+            this.returns = new double[nStep];
+            this.discounts = new double[nStep];
+            this.head = 0;
+            this.count = 0;
+        }
+
+        public final int capacity() { return this.returns.length; }
+        public int size() { return this.count; }
+
+        // i-th oldest pending transition
+        private int slot(int i) { return (this.head + i) % this.capacity(); }
+        public double[] getPrevState(int i) { return this.prevStates[this.slot(i)]; }
+        public double getReturn(int i) { return this.returns[this.slot(i)]; }
+
+        // start a new pending transition from row rowIdx of prevStates (the window must not be full)
+        public void push(Matrix prevStates,
+                         int rowIdx)
+        {
+            int slot = this.slot(this.count);
+            for(int cIdx = 0; cIdx < this.prevStates[slot].length; ++cIdx)
+            {
+                this.prevStates[slot][cIdx] = prevStates.get(rowIdx, cIdx);
+            }
+            this.returns[slot] = 0;
+            this.discounts[slot] = 1;
+            this.count += 1;
+        }
+
+        // fold reward into every pending return
+        public void accumulate(double reward,
+                               double discountFactor)
+        {
+            for(int i = 0; i < this.count; ++i)
+            {
+                int slot = this.slot(i);
+                this.returns[slot] += this.discounts[slot] * reward;
+                this.discounts[slot] *= discountFactor;
+            }
+        }
+
+        public void popOldest()
+        {
+            this.head = this.slot(1);
+            this.count -= 1;
+        }
+
+        public void clear()
+        {
+            this.head = 0;
+            this.count = 0;
+        }
+    }
+
     private ReplacementType     type;
-    private int                 size;
-    private int                 newestSampleIdx;
+    private TargetComputationType targetType;
+    private SamplingType        samplingType;
+
+    // (s, r, s', isTerminal) rows along with size and newestSampleIdx
+    private TransitionStorage   storage;
 
-    private Matrix              prevStates;
-    private Matrix              rewards;
-    private Matrix              nextStates;
-    private boolean             isStateTerminalMask[];
+    private SumTree             priorities;
+    private double              maxPriority;
+    private double              priorityAlpha;
+
+    // bellman targets computed with a frozen (target) q-function, only used when target caching is enabled
+    private boolean             isCachingTargets;
+    private double              cachedTargets[];
+    private boolean             isTargetCachedMask[];
+
+    // n-step returns: one pending window per stream of experience (only used when nStep > 1)
+    private int                 nStep;
+    private double              nStepDiscountFactor;
+    private List<NStepWindow>   nStepWindows;
 
     private Random              rng;
+    private TrainingMetrics     metrics;
+
+    public ReplayBuffer(ReplacementType type,
+                        int numSamples,
+                        int dim,
+                        Random rng)
+    {
+        this(type, TargetComputationType.PER_SAMPLE, numSamples, dim, rng);
+    }
 
     public ReplayBuffer(ReplacementType type,
+                        TargetComputationType targetType,
                         int numSamples,
                         int dim,
                         Random rng)
     {
+        this(type, targetType, SamplingType.UNIFORM, numSamples, dim, rng);
+    }
+
+    public ReplayBuffer(ReplacementType type,
+                        TargetComputationType targetType,
+                        SamplingType samplingType,
+                        int numSamples,
+                        int dim,
+                        Random rng)
+    {
+        this(type, targetType, samplingType, new MatrixTransitionStorage(numSamples, dim), rng);
+    }
+
+    /**
+     * Creates a buffer on top of existing storage. If the storage already holds transitions (e.g. a
+     * MappedTransitionStorage that was reopened) the buffer picks up right where it left off. Since priorities
+     * aren't persisted, reopened transitions all start with the same priority.
+     */
+    public ReplayBuffer(ReplacementType type,
+                        TargetComputationType targetType,
+                        SamplingType samplingType,
+                        TransitionStorage storage,
+                        Random rng)
+    {
+        int numSamples = storage.getCapacity();
+
         this.type = type;
-        this.size = 0;
-        this.newestSampleIdx = -1;
+        this.targetType = targetType;
+        this.samplingType = samplingType;
+        this.storage = storage;
+
+        this.priorities = samplingType == SamplingType.PRIORITIZED ? new SumTree(numSamples) : null;
+        this.maxPriority = 1.0;
+        this.priorityAlpha = DEFAULT_PRIORITY_ALPHA;
+        if(this.getPriorities() != null)
+        {
+            for(int rIdx = 0; rIdx < storage.getSize(); ++rIdx)
+            {
+                this.getPriorities().update(rIdx, this.getMaxPriority());
+            }
+        }
+
+        this.isCachingTargets = false;
+        this.cachedTargets = new double[numSamples];
+        this.isTargetCachedMask = new boolean[numSamples];
 
-        this.prevStates = Matrix.zeros(numSamples, dim);
-        this.rewards = Matrix.zeros(numSamples, 1);
-        this.nextStates = Matrix.zeros(numSamples, dim);
-        this.isStateTerminalMask = new boolean[numSamples];
+        this.nStep = 1;
+        this.nStepDiscountFactor = 1.0;
+        this.nStepWindows = new ArrayList<NStepWindow>();
 
         this.rng = rng;
+        this.metrics = TrainingMetrics.disabled();
 
     }
 
-    public int size() { return this.size; }
+    public int size() { return this.getStorage().getSize(); }
     public final ReplacementType getReplacementType() { return this.type; }
-    private int getNewestSampleIdx() { return this.newestSampleIdx; }
-    private Matrix getPrevStates() { return this.prevStates; }
-    private Matrix getNextStates() { return this.nextStates; }
-    private Matrix getRewards() { return this.rewards; }
-    private boolean[] getIsStateTerminalMask() { return this.isStateTerminalMask; }
+    public final TargetComputationType getTargetComputationType() { return this.targetType; }
+    public final SamplingType getSamplingType() { return this.samplingType; }
+    public double getPriorityAlpha() { return this.priorityAlpha; }
+    public boolean isCachingTargets() { return this.isCachingTargets; }
+    public final int getCapacity() { return this.getStorage().getCapacity(); }
+    public final int getDim() { return this.getStorage().getDim(); }
+    private int getNewestSampleIdx() { return this.getStorage().getNewestSampleIdx(); }
+    private TransitionStorage getStorage() { return this.storage; }
+
+    private SumTree getPriorities() { return this.priorities; }
+    private double getMaxPriority() { return this.maxPriority; }
+    private double[] getCachedTargets() { return this.cachedTargets; }
+    private boolean[] getIsTargetCachedMask() { return this.isTargetCachedMask; }
+
+    public int getNStep() { return this.nStep; }
+    private double getNStepDiscountFactor() { return this.nStepDiscountFactor; }
+    private List<NStepWindow> getNStepWindows() { return this.nStepWindows; }
 
     private Random getRandom() { return this.rng; }
+    private TrainingMetrics getMetrics() { return this.metrics; }
+
+    // time spent computing bellman targets is recorded into metrics
+    public void setMetrics(TrainingMetrics metrics) { this.metrics = metrics; }
+
+    private void setSize(int i) { this.getStorage().setSize(i); }
+    private void setNewestSampleIdx(int i) { this.getStorage().setNewestSampleIdx(i); }
+    private void setMaxPriority(double d) { this.maxPriority = d; }
+    public void setPriorityAlpha(double d) { this.priorityAlpha = d; }
+
+    /**
+     * When enabled, every bellman target the buffer computes is remembered per row and reused until either the
+     * row is overwritten by addSample or invalidateTargets() is called. This is only correct if the q-function
+     * passed to getGroundTruth is frozen (i.e. a target network), and invalidateTargets() is called whenever
+     * that network changes.
+     */
+    public void setCachingTargets(boolean b)
+    {
+        this.isCachingTargets = b;
+        this.invalidateTargets();
+    }
+
+    /**
+     * Switches the buffer to n-step returns. Instead of (s_t, r_t, s_{t+1}) every stored transition becomes
+     * (s_t, r_t + gamma r_{t+1} + ... + gamma^{n-1} r_{t+n-1}, s_{t+n}), whose bellman target bootstraps with
+     * gamma^n * max_a' Q(s_{t+n}, a'). Transitions wait in a small per-stream window until n more rewards have
+     * arrived, and when an episode ends every transition still waiting is stored as terminal with its truncated
+     * return. discountFactor must be the same gamma that targets are computed with. nStep = 1 is the usual
+     * one-step buffer. Changing this drops any pending transitions.
+     */
+    public void setNStep(int nStep,
+                         double discountFactor)
+    {
+        if(nStep < 1)
+        {
+            System.err.println("[ERROR] ReplayBuffer.setNStep: nStep must be >= 1 but got " + nStep);
+            System.exit(-1);
+        }
+        this.nStep = nStep;
+        this.nStepDiscountFactor = discountFactor;
+        this.getNStepWindows().clear();
+        this.invalidateTargets();
+    }
+
+    // drop every transition still waiting for its n-step return (e.g. when episodes are abandoned midway)
+    public void clearPendingTransitions()
+    {
+        for(NStepWindow window : this.getNStepWindows())
+        {
+            window.clear();
+        }
+    }
+
+    private NStepWindow getNStepWindow(int streamIdx)
+    {
+        while(this.getNStepWindows().size() <= streamIdx)
+        {
+            this.getNStepWindows().add(new NStepWindow(this.getNStep(), this.getDim()));
+        }
+        return this.getNStepWindows().get(streamIdx);
+    }
+
+    // the transition (row prevRowIdx of prevStates, reward, row nextRowIdx of nextStates) just happened in stream
+    // streamIdx: fold it into that stream's window and store whatever transitions that completes
+    private void addNStepSample(int streamIdx,
+                                Matrix prevStates,
+                                int prevRowIdx,
+                                double reward,
+                                Matrix nextStates,
+                                int nextRowIdx,
+                                boolean isTerminal)
+    {
+        NStepWindow window = this.getNStepWindow(streamIdx);
+        window.push(prevStates, prevRowIdx);
+        window.accumulate(reward, this.getNStepDiscountFactor());
+
+        if(isTerminal)
+        {
+            // the episode is over: nothing left to bootstrap from
+            for(int i = 0; i < window.size(); ++i)
+            {
+                this.insertTransition(window.getPrevState(i), window.getReturn(i), null, -1);
+            }
+            window.clear();
+        }
+        else if(window.size() == window.capacity())
+        {
+            this.insertTransition(window.getPrevState(0), window.getReturn(0), nextStates, nextRowIdx);
+            window.popOldest();
+        }
+    }
 
-    private void setSize(int i) { this.size = i; }
-    private void setNewestSampleIdx(int i) { this.newestSampleIdx = i; }
+    // stores (prevState, reward, row nextRowIdx of nextStates), or a terminal transition if nextStates is null
+    private void insertTransition(double[] prevState,
+                                  double reward,
+                                  Matrix nextStates,
+                                  int nextRowIdx)
+    {
+        int rowIdx = this.chooseRowToInsert();
+        for(int cIdx = 0; cIdx < this.getDim(); ++cIdx)
+        {
+            this.getStorage().setPrevState(rowIdx, cIdx, prevState[cIdx]);
+        }
+        this.getStorage().setReward(rowIdx, reward);
+        if(nextStates != null)
+        {
+            for(int cIdx = 0; cIdx < this.getDim(); ++cIdx)
+            {
+                this.getStorage().setNextState(rowIdx, cIdx, nextStates.get(nextRowIdx, cIdx));
+            }
+        }
+        this.onRowInserted(rowIdx, nextStates == null);
+    }
+
+    // persist everything added so far (only matters for persistent storage)
+    public void flush()
+    {
+        this.getStorage().flush();
+    }
+
+    // forget every cached target (call this whenever the target network is synced)
+    public void invalidateTargets()
+    {
+        Arrays.fill(this.getIsTargetCachedMask(), false);
+    }
 
     private int chooseSampleToEvict()
     {
@@ -72,10 +454,10 @@ public class ReplayBuffer
         switch(this.getReplacementType())
         {
             case RANDOM:
-                idxToEvict = this.getRandom().nextInt(this.getNextStates().getShape().getNumRows());
+                idxToEvict = this.getRandom().nextInt(this.getCapacity());
                 break;
             case OLDEST:
-                idxToEvict = (this.getNewestSampleIdx() + 1) % this.getNextStates().getShape().getNumRows();
+                idxToEvict = (this.getNewestSampleIdx() + 1) % this.getCapacity();
                 break;
             default:
                 System.err.println("[ERROR] ReplayBuffer.chooseSampleToEvict: unknown replacement type "
@@ -104,61 +486,143 @@ public class ReplayBuffer
 
         // After we determine the row index to insert this new transition into
         // there are several fields that need to be updated.
-        //      - We want to put the prevState in the Matrix returned by this.getPrevStates()
-        //      - We want to put the reward in the Matrix returned by this.getRewards()
-        //      - We want to put nextState in the Matrix returned by this.getNextStates() but ONLY if it isnt Null!
+        //      - We want to put the prevState in the storage returned by this.getStorage() (setPrevState)
+        //      - We want to put the reward in the storage (setReward)
+        //      - We want to put nextState in the storage (setNextState) but ONLY if it isnt Null!
         //          Since we need to store terminal transitions (i.e. transitions that end the game)
         //          its possible for nextState to be null. If it is, we don't want to add it
-        //      - We want to update the array returned by this.getIsStateTerminalMask() with whether nextState
+        //      - We want to update the storage's terminal flag (setTerminal) with whether nextState
         //          is null or not. Put a true value if nextState is null, and false otherwise
         //      - We want to update any indexing information that we would need to keep the replacementType going
         //          - if there is space left, we need to increment this.getSize()
         //          - if there isn't space left and we have OLDEST replacement, we need to increment this.getNewestSampleIdx
-        int capacity = this.getPrevStates().getShape().getNumRows();
-        int rowIdx;
+        if(this.getNStep() > 1)
+        {
+            this.addNStepSample(0, prevState, 0, reward, nextState, 0, nextState == null);
+            return;
+        }
 
-        if (this.size() < capacity)              // still space → append
+        int rowIdx = this.chooseRowToInsert();
+
+        // s  (previous state)
+        for(int cIdx = 0; cIdx < this.getDim(); ++cIdx)
         {
-            rowIdx = this.size();
-            this.setSize(this.size() + 1);
+            this.getStorage().setPrevState(rowIdx, cIdx, prevState.get(0, cIdx));
         }
-        else                                     // full → evict
+
+        // r  (scalar reward)
+        this.getStorage().setReward(rowIdx, reward);
+
+        // s' (next state) + terminal mask
+        if (nextState != null)               // non‑terminal
         {
-            rowIdx = this.chooseSampleToEvict(); // RANDOM or OLDEST
+            for(int cIdx = 0; cIdx < this.getDim(); ++cIdx)
+            {
+                this.getStorage().setNextState(rowIdx, cIdx, nextState.get(0, cIdx));
+            }
         }
 
-        try
+        this.onRowInserted(rowIdx, nextState == null);
+    }
+
+    /**
+     * Adds one transition per row of prevStates: (prevStates[i], rewards[i], nextStates[i]), where
+     * nextStates[i] is ignored if isTerminal[i] (so nextStates may be null if every transition is terminal).
+     * Rows are copied element by element, so unlike addSample no temporary row matrices are created.
+     */
+    public void addSamples(Matrix prevStates,
+                           double[] rewards,
+                           Matrix nextStates,
+                           boolean[] isTerminal)
+    {
+        this.addSamples(prevStates, rewards, nextStates, isTerminal, rewards.length);
+    }
+
+    // same as above but only adds the first numSamples rows
+    public void addSamples(Matrix prevStates,
+                           double[] rewards,
+                           Matrix nextStates,
+                           boolean[] isTerminal,
+                           int numSamples)
+    {
+        this.addSamples(prevStates, rewards, nextStates, isTerminal, numSamples, null);
+    }
+
+    /**
+     * Same as above, but also says which stream of experience (e.g. which game) each transition came from, which
+     * is what n-step returns are accumulated over. If streamIdxs is null, row i is assumed to come from stream i
+     * (e.g. game i of a VectorizedGame). addSample uses stream 0.
+     */
+    public void addSamples(Matrix prevStates,
+                           double[] rewards,
+                           Matrix nextStates,
+                           boolean[] isTerminal,
+                           int numSamples,
+                           int[] streamIdxs)
+    {
+        if(this.getNStep() > 1)
         {
-            // s  (previous state)
-            this.getPrevStates().copySlice(
-                    rowIdx, rowIdx + 1,
-                    0, this.getPrevStates().getShape().getNumCols(),
-                    prevState);
+            for(int idx = 0; idx < numSamples; ++idx)
+            {
+                this.addNStepSample(streamIdxs != null ? streamIdxs[idx] : idx,
+                                    prevStates, idx, rewards[idx], nextStates, idx, isTerminal[idx]);
+            }
+            return;
+        }
 
-            // r  (scalar reward)
-            this.getRewards().set(rowIdx, 0, reward);
+        int dim = this.getDim();
+        for(int idx = 0; idx < numSamples; ++idx)
+        {
+            int rowIdx = this.chooseRowToInsert();
 
-            // s' (next state) + terminal mask
-            if (nextState != null)               // non‑terminal
+            for(int cIdx = 0; cIdx < dim; ++cIdx)
             {
-                this.getNextStates().copySlice(
-                        rowIdx, rowIdx + 1,
-                        0, this.getNextStates().getShape().getNumCols(),
-                        nextState);
-                this.getIsStateTerminalMask()[rowIdx] = false;
+                this.getStorage().setPrevState(rowIdx, cIdx, prevStates.get(idx, cIdx));
             }
-            else                                 // terminal transition
+            this.getStorage().setReward(rowIdx, rewards[idx]);
+            if(!isTerminal[idx])
             {
-                this.getIsStateTerminalMask()[rowIdx] = true;
+                for(int cIdx = 0; cIdx < dim; ++cIdx)
+                {
+                    this.getStorage().setNextState(rowIdx, cIdx, nextStates.get(idx, cIdx));
+                }
             }
+
+            this.onRowInserted(rowIdx, isTerminal[idx]);
         }
-        catch (Exception e)
+    }
+
+    // append if there is space left, otherwise pick a row to evict (RANDOM or OLDEST)
+    private int chooseRowToInsert()
+    {
+        int capacity = this.getCapacity();
+        int rowIdx;
+
+        if (this.size() < capacity)              // still space → append
         {
-            e.printStackTrace();
-            System.exit(-1);
+            rowIdx = this.size();
+            this.setSize(this.size() + 1);
         }
+        else                                     // full → evict
+        {
+            rowIdx = this.chooseSampleToEvict(); // RANDOM or OLDEST
+        }
+        return rowIdx;
+    }
 
+    // bookkeeping that has to happen once a transition has been written into row rowIdx
+    private void onRowInserted(int rowIdx,
+                               boolean isTerminal)
+    {
+        this.getStorage().setTerminal(rowIdx, isTerminal);
         this.setNewestSampleIdx(rowIdx);
+        this.getIsTargetCachedMask()[rowIdx] = false;
+
+        // new transitions get the largest priority seen so far so that they are guaranteed to be trained on
+        if(this.getPriorities() != null)
+        {
+            this.getPriorities().update(rowIdx, Math.pow(this.getMaxPriority(), this.getPriorityAlpha()));
+        }
     }
 
     public static double max(Matrix qValues) throws IndexOutOfBoundsException
@@ -172,15 +636,43 @@ public class ReplayBuffer
             if(!initialized || qVal > maxVal)
             {
                 maxVal = qVal;
+                initialized = true;
             }
         }
         return maxVal;
     }
 
+    // same as max(Matrix) but for an arbitrary row of a (batched) q-value matrix
+    public static double rowMax(Matrix qValues,
+                                int rowIdx) throws IndexOutOfBoundsException
+    {
+        double maxVal = qValues.get(rowIdx, 0);
+        for(int colIdx = 1; colIdx < qValues.getShape().getNumCols(); ++colIdx)
+        {
+            double qVal = qValues.get(rowIdx, colIdx);
+            if(qVal > maxVal)
+            {
+                maxVal = qVal;
+            }
+        }
+        return maxVal;
+    }
+
+
+    // how much max_a' Q(s', a') is discounted by in a target: gamma for one-step buffers, gamma^n for n-step ones
+    private double getBootstrapDiscount(double discountFactor)
+    {
+        return this.getNStep() == 1 ? discountFactor : Math.pow(discountFactor, this.getNStep());
+    }
 
     public Matrix getGroundTruth(Model qFunction,
                                  double discountFactor)
     {
+        if(this.getTargetComputationType() == TargetComputationType.BATCHED || this.isCachingTargets())
+        {
+            return this.getBatchedGroundTruth(qFunction, discountFactor);
+        }
+
         // TODO: complete me!
 
         // This method should calculate the bellman update for temporal difference learning so that
@@ -204,22 +696,23 @@ public class ReplayBuffer
         // which could either be (s, r, s') or (s, r, null), so when calculating the bellman update for that row,
         // you need to check the mask to see which version you're calculating! 
         int n = this.size();                       // # transitions stored
+        long start = this.getMetrics().start();
         Matrix yGt = Matrix.zeros(n, 1);           // column‑vector target
 
         try
         {
             for (int i = 0; i < n; ++i)
             {
-                double r = this.getRewards().get(i, 0);
+                double r = this.getStorage().getReward(i);
 
-                if (this.getIsStateTerminalMask()[i])            // terminal → y = r
+                if (this.getStorage().isTerminal(i))             // terminal → y = r
                 {
                     yGt.set(i, 0, r);
                 }
                 else                                             // non‑terminal
                 {
                     // Extract s'   (1 × dim row‑vector)
-                    Matrix sPrime = this.getNextStates().getRow(i);
+                    Matrix sPrime = this.gatherNextState(i);
 
                     // Feed s' through Q‑network → 1 × |A| scores
                     Matrix qVals = qFunction.forward(sPrime);    // or qFunction.predict(...)
@@ -228,7 +721,7 @@ public class ReplayBuffer
                     double maxQ = ReplayBuffer.max(qVals);
 
                     // Bellman target: r + γ * maxQ
-                    yGt.set(i, 0, r + discountFactor * maxQ);
+                    yGt.set(i, 0, r + this.getBootstrapDiscount(discountFactor) * maxQ);
                 }
             }
         }
@@ -237,26 +730,294 @@ public class ReplayBuffer
             e.printStackTrace();
             System.exit(-1);
         }
+        this.getMetrics().stop(TrainingMetrics.Phase.TARGET_COMPUTATION, start);
 
         return yGt;
     }
 
-    public Pair<Matrix, Matrix> getTrainingData(Model qFunction,
-                                                double discountFactor)
+    /**
+     * Computes the same bellman targets as the per-sample version of getGroundTruth, but instead of
+     * one (1 x dim) forward pass per non-terminal transition we gather every non-terminal s' into a single
+     * (numNonTerminal x dim) matrix, push it through the q-function once, and then scatter the row-wise
+     * max q-values back into the target vector using the terminal mask. Very large buffers are processed
+     * BATCHED_TARGET_CHUNK_SIZE non-terminal rows at a time.
+     */
+    public Matrix getBatchedGroundTruth(Model qFunction,
+                                        double discountFactor)
     {
-        Matrix X = Matrix.zeros(this.size(), this.getPrevStates().getShape().getNumCols());
+        int[] rowIdxs = new int[this.size()];
+        for(int rIdx = 0; rIdx < rowIdxs.length; ++rIdx)
+        {
+            rowIdxs[rIdx] = rIdx;
+        }
+        return this.getGroundTruth(qFunction, discountFactor, rowIdxs);
+    }
+
+    /**
+     * Batched bellman targets for an arbitrary subset of the buffer. Row i of the returned (rowIdxs.length x 1)
+     * column vector is the target for the transition stored at row rowIdxs[i]. When target caching is enabled
+     * only the rows without a cached target are pushed through the q-function.
+     */
+    public Matrix getGroundTruth(Model qFunction,
+                                 double discountFactor,
+                                 int[] rowIdxs)
+    {
+        if(!this.isCachingTargets())
+        {
+            return this.computeGroundTruth(qFunction, discountFactor, rowIdxs);
+        }
+
+        // figure out which rows we actually need to compute
+        int numMissing = 0;
+        for(int idx = 0; idx < rowIdxs.length; ++idx)
+        {
+            if(!this.getIsTargetCachedMask()[rowIdxs[idx]])
+            {
+                numMissing += 1;
+            }
+        }
+
+        if(numMissing > 0)
+        {
+            int[] missingRowIdxs = new int[numMissing];
+            int missingIdx = 0;
+            for(int idx = 0; idx < rowIdxs.length; ++idx)
+            {
+                int rIdx = rowIdxs[idx];
+                if(!this.getIsTargetCachedMask()[rIdx])
+                {
+                    // mark it now so that a row that appears twice in rowIdxs is only computed once
+                    this.getIsTargetCachedMask()[rIdx] = true;
+                    missingRowIdxs[missingIdx++] = rIdx;
+                }
+            }
+            missingRowIdxs = Arrays.copyOf(missingRowIdxs, missingIdx);
+
+            Matrix missingTargets = this.computeGroundTruth(qFunction, discountFactor, missingRowIdxs);
+            for(int idx = 0; idx < missingRowIdxs.length; ++idx)
+            {
+                this.getCachedTargets()[missingRowIdxs[idx]] = missingTargets.get(idx, 0);
+            }
+        }
+
+        Matrix yGt = Matrix.zeros(rowIdxs.length, 1);
+        for(int idx = 0; idx < rowIdxs.length; ++idx)
+        {
+            yGt.set(idx, 0, this.getCachedTargets()[rowIdxs[idx]]);
+        }
+        return yGt;
+    }
+
+    private Matrix computeGroundTruth(Model qFunction,
+                                      double discountFactor,
+                                      int[] rowIdxs)
+    {
+        int n = rowIdxs.length;
+        int dim = this.getDim();
+        double bootstrapDiscount = this.getBootstrapDiscount(discountFactor);
+        Matrix yGt = Matrix.zeros(n, 1);
+        long start = this.getMetrics().start();
+
         try
         {
-            for(int rIdx = 0; rIdx < this.size(); ++rIdx)
+            // walk the rows in chunks so that a huge buffer doesn't become one huge (cache-unfriendly) matmul
+            Matrix sPrimes = null;
+            int[] chunkIdxs = new int[Math.min(n, BATCHED_TARGET_CHUNK_SIZE)];
+            int[] chunkRowIdxs = new int[chunkIdxs.length];
+            int idx = 0;
+            while(idx < n)
             {
-                X.copySlice(rIdx, rIdx+1, 0, X.getShape().getNumCols(),
-                            this.getPrevStates().getRow(rIdx));
+                // gather s' for every non-terminal transition in this chunk, terminal transitions are just y = r
+                int numNonTerminal = 0;
+                for(; idx < n && numNonTerminal < chunkIdxs.length; ++idx)
+                {
+                    int rIdx = rowIdxs[idx];
+                    if(this.getStorage().isTerminal(rIdx))
+                    {
+                        yGt.set(idx, 0, this.getStorage().getReward(rIdx));
+                    }
+                    else
+                    {
+                        chunkRowIdxs[numNonTerminal] = rIdx;
+                        chunkIdxs[numNonTerminal++] = idx;
+                    }
+                }
+                if(numNonTerminal == 0)
+                {
+                    continue;
+                }
+
+                if(sPrimes == null || sPrimes.getShape().getNumRows() != numNonTerminal)
+                {
+                    sPrimes = Matrix.zeros(numNonTerminal, dim);
+                }
+                this.getStorage().copyNextStates(chunkRowIdxs, numNonTerminal, sPrimes);
+
+                // one forward pass for the whole chunk, then scatter r + gamma * max_a' Q(s', a') back
+                Matrix qVals = qFunction.forward(sPrimes);
+                for(int bIdx = 0; bIdx < numNonTerminal; ++bIdx)
+                {
+                    int rIdx = chunkRowIdxs[bIdx];
+                    yGt.set(chunkIdxs[bIdx], 0, this.getStorage().getReward(rIdx)
+                                                + bootstrapDiscount * ReplayBuffer.rowMax(qVals, bIdx));
+                }
             }
-        } catch(Exception e)
+        }
+        catch (Exception e)
         {
             e.printStackTrace();
             System.exit(-1);
         }
+        this.getMetrics().stop(TrainingMetrics.Phase.TARGET_COMPUTATION, start);
+
+        return yGt;
+    }
+
+    // copies the prevStates stored at rowIdxs into a fresh (rowIdxs.length x dim) matrix
+    private Matrix gatherPrevStates(int[] rowIdxs)
+    {
+        Matrix X = Matrix.zeros(rowIdxs.length, this.getDim());
+        this.getStorage().copyPrevStates(rowIdxs, rowIdxs.length, X);
+        return X;
+    }
+
+    // copies the nextState stored at rowIdx into a fresh (1 x dim) matrix
+    private Matrix gatherNextState(int rowIdx)
+    {
+        Matrix sPrime = Matrix.zeros(1, this.getDim());
+        for(int cIdx = 0; cIdx < this.getDim(); ++cIdx)
+        {
+            sPrime.set(0, cIdx, this.getStorage().getNextState(rowIdx, cIdx));
+        }
+        return sPrime;
+    }
+
+    public MinibatchSampler sampler(Model qFunction,
+                                    double discountFactor,
+                                    int batchSize,
+                                    long numBatches,
+                                    double beta)
+    {
+        return new MinibatchSampler(this, qFunction, discountFactor, batchSize, numBatches, beta);
+    }
+
+    // draws one minibatch according to the buffer's sampling type (beta is ignored by uniform buffers)
+    public Minibatch sampleBatch(Model qFunction,
+                                 double discountFactor,
+                                 int batchSize,
+                                 double beta)
+    {
+        if(this.getSamplingType() == SamplingType.PRIORITIZED)
+        {
+            return this.samplePrioritizedBatch(qFunction, discountFactor, batchSize, beta);
+        }
+        return this.sampleUniformBatch(qFunction, discountFactor, batchSize);
+    }
+
+    // draws min(batchSize, size()) transitions uniformly at random (with replacement)
+    public Minibatch sampleUniformBatch(Model qFunction,
+                                        double discountFactor,
+                                        int batchSize)
+    {
+        int[] rowIdxs = new int[Math.min(batchSize, this.size())];
+        for(int idx = 0; idx < rowIdxs.length; ++idx)
+        {
+            rowIdxs[idx] = this.getRandom().nextInt(this.size());
+        }
+
+        return new Minibatch(rowIdxs,
+                             this.gatherPrevStates(rowIdxs),
+                             this.getGroundTruth(qFunction, discountFactor, rowIdxs),
+                             null);
+    }
+
+    /**
+     * Draws a minibatch of batchSize transitions with probability proportional to their priority.
+     * The sum-tree range is split into batchSize equal segments and one transition is drawn from each
+     * (stratified sampling), so every draw is a single O(log n) walk down the tree.
+     * The returned importance sampling weights (N * P(i))^(-beta) are normalized by their max so they only
+     * ever scale gradients down.
+     */
+    public Minibatch samplePrioritizedBatch(Model qFunction,
+                                            double discountFactor,
+                                            int batchSize,
+                                            double beta)
+    {
+        if(this.getPriorities() == null)
+        {
+            System.err.println("[ERROR] ReplayBuffer.samplePrioritizedBatch: buffer was not created with "
+                + "SamplingType.PRIORITIZED");
+            System.exit(-1);
+        }
+
+        int n = Math.min(batchSize, this.size());
+        int[] rowIdxs = new int[n];
+        Matrix weights = Matrix.zeros(n, 1);
+
+        double total = this.getPriorities().total();
+        double segmentLength = total / n;
+        double maxWeight = 0;
+        for(int idx = 0; idx < n; ++idx)
+        {
+            double prefixSum = (idx + this.getRandom().nextDouble()) * segmentLength;
+            int rIdx = Math.min(this.getPriorities().find(Math.min(prefixSum, total)), this.size() - 1);
+            rowIdxs[idx] = rIdx;
+
+            double prob = this.getPriorities().get(rIdx) / total;
+            double weight = Math.pow(this.size() * prob, -beta);
+            weights.set(idx, 0, weight);
+            maxWeight = Math.max(maxWeight, weight);
+        }
+        for(int idx = 0; idx < n; ++idx)
+        {
+            weights.set(idx, 0, weights.get(idx, 0) / maxWeight);
+        }
+
+        return new Minibatch(rowIdxs,
+                             this.gatherPrevStates(rowIdxs),
+                             this.getGroundTruth(qFunction, discountFactor, rowIdxs),
+                             weights);
+    }
+
+    /**
+     * Refreshes the priorities of the rows in batch using the TD errors of the q-function's predictions YHat
+     * (which are the predictions made for batch.getX()). Since the q-function predicts one value per action
+     * and the loss pushes every one of them towards the target, we use the root-mean-square error of the row
+     * as its TD error.
+     */
+    public void updatePriorities(Minibatch batch,
+                                 Matrix YHat)
+    {
+        if(this.getPriorities() == null)
+        {
+            return;
+        }
+
+        int numActions = YHat.getShape().getNumCols();
+        for(int idx = 0; idx < batch.getRowIdxs().length; ++idx)
+        {
+            double sqErr = 0;
+            for(int aIdx = 0; aIdx < numActions; ++aIdx)
+            {
+                double err = batch.getYGt().get(idx, 0) - YHat.get(idx, aIdx);
+                sqErr += err * err;
+            }
+            double priority = Math.sqrt(sqErr / numActions) + PRIORITY_EPSILON;
+
+            this.setMaxPriority(Math.max(this.getMaxPriority(), priority));
+            this.getPriorities().update(batch.getRowIdxs()[idx], Math.pow(priority, this.getPriorityAlpha()));
+        }
+    }
+
+    public Pair<Matrix, Matrix> getTrainingData(Model qFunction,
+                                                double discountFactor)
+    {
+        int[] rowIdxs = new int[this.size()];
+        for(int rIdx = 0; rIdx < rowIdxs.length; ++rIdx)
+        {
+            rowIdxs[rIdx] = rIdx;
+        }
+        Matrix X = this.gatherPrevStates(rowIdxs);
         Matrix YGt = this.getGroundTruth(qFunction, discountFactor);
 
         return new Pair<Matrix, Matrix>(X, YGt);
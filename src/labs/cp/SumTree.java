@@ -0,0 +1,75 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+
+
+// JAVA PROJECT IMPORTS
+
+
+/**
+ * A binary sum-tree over a fixed number of leaves (one per ReplayBuffer row). Every internal node stores the
+ * sum of its children, so updating a leaf's priority and finding the leaf that a prefix sum falls into both
+ * take O(log n) time. Leaves live in tree[capacity .. 2*capacity-1], and the root is tree[1].
+ */
+public class SumTree
+    extends Object
+{
+    private final int       capacity;
+    private final double[]  tree;
+
+    public SumTree(int capacity)
+    {
+        int numLeaves = 1;
+        while(numLeaves < capacity)
+        {
+            numLeaves <<= 1;
+        }
+        this.capacity = numLeaves;
+        this.tree = new double[2 * numLeaves];
+    }
+
+    public final int getCapacity() { return this.capacity; }
+    private double[] getTree() { return this.tree; }
+
+    public double total() { return this.getTree()[1]; }
+
+    public double get(int leafIdx) { return this.getTree()[this.getCapacity() + leafIdx]; }
+
+    public void update(int leafIdx,
+                       double priority)
+    {
+        // recompute the parents from their children (rather than adding a delta) so rounding error can't build up
+        int nodeIdx = this.getCapacity() + leafIdx;
+        this.getTree()[nodeIdx] = priority;
+        nodeIdx >>= 1;
+        while(nodeIdx >= 1)
+        {
+            this.getTree()[nodeIdx] = this.getTree()[nodeIdx << 1] + this.getTree()[(nodeIdx << 1) + 1];
+            nodeIdx >>= 1;
+        }
+    }
+
+    /**
+     * Returns the leaf whose cumulative priority range contains prefixSum, i.e. the smallest leaf i such that
+     * sum(priority[0..i]) > prefixSum. prefixSum should be in [0, total()).
+     */
+    public int find(double prefixSum)
+    {
+        int nodeIdx = 1;
+        while(nodeIdx < this.getCapacity())
+        {
+            int leftIdx = nodeIdx << 1;
+            if(prefixSum < this.getTree()[leftIdx] || this.getTree()[leftIdx + 1] <= 0)
+            {
+                nodeIdx = leftIdx;
+            }
+            else
+            {
+                prefixSum -= this.getTree()[leftIdx];
+                nodeIdx = leftIdx + 1;
+            }
+        }
+        return nodeIdx - this.getCapacity();
+    }
+}
@@ -0,0 +1,567 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.utils.Pair;
+
+
+import src.labs.cp.Main;
+
+
+/**
+ * Runs a hyperparameter sweep of Main inside one jvm. Every trial (one configuration with one seed) is a
+ * Main.run with its own game, rng, model, and replay buffer, and up to --numParallelTrials trials train at the
+ * same time on a fixed thread pool. Unless --numEvalThreads is given, every trial evaluates with
+ * availableProcessors() / --numParallelTrials threads, so a sweep runs about as many threads as there are cores.
+ * Swept parameters are given as --param name=spec where name is any long option of Main and spec is either a
+ * comma separated list of values or (random search only) a range lo:hi that is sampled log-uniformly when lo > 0
+ * (and rounded if both ends are integers). Every argument that SweepRunner doesn't recognize is passed on to
+ * every trial.
+ *
+ * If --earlyStopAfter > 0, trials are cut short by the median stopping rule: from that cycle on, a trial stops
+ * if its best eval utility so far is below the median of the best utilities so far that the other trials had
+ * after the same number of cycles.
+ *
+ * Every trial saves its checkpoints (and metrics, if --metricsFile is given) under --outDir/trialXX/.
+ * When every trial is done, one row per trial is written to --outDir/trials.tsv and one row per configuration
+ * (aggregated over seeds, best first) is written to --outDir/summary.tsv and printed.
+ *
+ * Run with:
+ *      java -cp "./lib/*:." src.labs.cp.SweepRunner --param lr=1e-6,1e-5 --param gamma=0.9,0.99 --numSeeds 3 -p 10
+ */
+public class SweepRunner
+    extends Object
+{
+    public static enum SearchType
+    {
+        GRID,   // every combination of the listed values
+        RANDOM; // --numSamples configurations, each value drawn independently
+    }
+
+    // a swept hyperparameter
+    public static class Param
+        extends Object
+    {
+        private final String        name;
+        private final List<String>  values;     // null if this is a range
+        private final double        lo;
+        private final double        hi;
+        private final boolean       isInteger;
+
+        public Param(String spec)
+        {
+            int eqIdx = spec.indexOf('=');
+            if(eqIdx <= 0 || eqIdx == spec.length() - 1)
+            {
+                System.err.println("[ERROR] SweepRunner.Param: expected name=values but got " + spec);
+                System.exit(-1);
+            }
+            this.name = spec.substring(0, eqIdx).replaceFirst("^-+", "");
+            String valueSpec = spec.substring(eqIdx + 1);
+
+            String[] range = valueSpec.split(":");
+            if(range.length == 2)
+            {
+                this.values = null;
+                this.lo = Double.parseDouble(range[0]);
+                this.hi = Double.parseDouble(range[1]);
+                this.isInteger = isInteger(range[0]) && isInteger(range[1]);
+            }
+            else
+            {
+                this.values = new ArrayList<String>();
+                for(String value : valueSpec.split(","))
+                {
+                    this.values.add(value.trim());
+                }
+                this.lo = 0;
+                this.hi = 0;
+                this.isInteger = false;
+            }
+        }
+
+        public final String getName() { return this.name; }
+        public final List<String> getValues() { return this.values; }
+        public final boolean isRange() { return this.values == null; }
+
+        private static boolean isInteger(String s)
+        {
+            return s.trim().matches("-?\\d+");
+        }
+
+        public String sample(Random rng)
+        {
+            if(!this.isRange())
+            {
+                return this.getValues().get(rng.nextInt(this.getValues().size()));
+            }
+
+            double value = this.lo > 0
+                ? Math.exp(Math.log(this.lo) + rng.nextDouble() * (Math.log(this.hi) - Math.log(this.lo)))
+                : this.lo + rng.nextDouble() * (this.hi - this.lo);
+            return this.isInteger ? Long.toString(Math.round(value)) : Double.toString(value);
+        }
+    }
+
+    // one configuration run with one seed
+    public static class Trial
+        extends Object
+    {
+        private final int                   trialIdx;
+        private final int                   configIdx;
+        private final Map<String, String>   config;
+        private final long                  seed;
+        private final Namespace             ns;
+
+        private List<Pair<Double, Double>>  evals;
+        private boolean                     isStoppedEarly;
+        private double                      numSeconds;
+
+        public Trial(int trialIdx,
+                     int configIdx,
+                     Map<String, String> config,
+                     long seed,
+                     Namespace ns)
+        {
+            this.trialIdx = trialIdx;
+            this.configIdx = configIdx;
+            this.config = config;
+            this.seed = seed;
+            this.ns = ns;
+            this.evals = new ArrayList<Pair<Double, Double>>();
+            this.isStoppedEarly = false;
+            this.numSeconds = 0;
+        }
+
+        public final int getTrialIdx() { return this.trialIdx; }
+        public final int getConfigIdx() { return this.configIdx; }
+        public final Map<String, String> getConfig() { return this.config; }
+        public final long getSeed() { return this.seed; }
+        public final Namespace getNamespace() { return this.ns; }
+        public final List<Pair<Double, Double>> getEvals() { return this.evals; }
+        public final boolean isStoppedEarly() { return this.isStoppedEarly; }
+        public final double getNumSeconds() { return this.numSeconds; }
+
+        public String getName() { return "trial" + this.getTrialIdx(); }
+
+        public double getFinalUtility()
+        {
+            return this.getEvals().isEmpty()
+                ? Double.NaN
+                : this.getEvals().get(this.getEvals().size() - 1).getFirst();
+        }
+
+        public double getFinalGameLength()
+        {
+            return this.getEvals().isEmpty()
+                ? Double.NaN
+                : this.getEvals().get(this.getEvals().size() - 1).getSecond();
+        }
+
+        public double getBestUtility()
+        {
+            double best = Double.NaN;
+            for(Pair<Double, Double> eval : this.getEvals())
+            {
+                if(Double.isNaN(best) || eval.getFirst() > best)
+                {
+                    best = eval.getFirst();
+                }
+            }
+            return best;
+        }
+
+        public void run(MedianStoppingRule stoppingRule)
+        {
+            long start = System.nanoTime();
+            double[] bestUtility = new double[]{Double.NEGATIVE_INFINITY};
+            this.evals = Main.run(this.getName(), this.getNamespace(), (cycleIdx, eval) ->
+            {
+                bestUtility[0] = Math.max(bestUtility[0], eval.getFirst());
+                this.isStoppedEarly = stoppingRule != null && stoppingRule.shouldStop(cycleIdx, bestUtility[0]);
+                return this.isStoppedEarly;
+            });
+            this.numSeconds = (System.nanoTime() - start) / 1e9;
+        }
+    }
+
+    // stop a trial whose best utility is below the median of what the other trials had after as many cycles
+    public static class MedianStoppingRule
+        extends Object
+    {
+        public static final int MIN_NUM_PEERS = 2;
+
+        private final int                   minNumCycles;
+        private final List<List<Double>>    bestUtilitiesByCycle;
+
+        public MedianStoppingRule(int minNumCycles)
+        {
+            this.minNumCycles = minNumCycles;
+            this.bestUtilitiesByCycle = new ArrayList<List<Double>>();
+        }
+
+        public final int getMinNumCycles() { return this.minNumCycles; }
+
+        public synchronized boolean shouldStop(int cycleIdx,
+                                               double bestUtility)
+        {
+            while(this.bestUtilitiesByCycle.size() <= cycleIdx)
+            {
+                this.bestUtilitiesByCycle.add(new ArrayList<Double>());
+            }
+            List<Double> peers = this.bestUtilitiesByCycle.get(cycleIdx);
+
+            boolean shouldStop = false;
+            if(cycleIdx + 1 >= this.getMinNumCycles() && peers.size() >= MIN_NUM_PEERS)
+            {
+                List<Double> sorted = new ArrayList<Double>(peers);
+                Collections.sort(sorted);
+                int mid = sorted.size() / 2;
+                double median = sorted.size() % 2 == 1
+                    ? sorted.get(mid)
+                    : (sorted.get(mid - 1) + sorted.get(mid)) / 2;
+                shouldStop = bestUtility < median;
+            }
+            peers.add(bestUtility);
+            return shouldStop;
+        }
+    }
+
+    private static List<Map<String, String>> makeConfigs(List<Param> params,
+                                                         SearchType searchType,
+                                                         int numSamples,
+                                                         Random rng)
+    {
+        List<Map<String, String>> configs = new ArrayList<Map<String, String>>();
+        if(searchType == SearchType.RANDOM)
+        {
+            for(int sIdx = 0; sIdx < numSamples; ++sIdx)
+            {
+                Map<String, String> config = new LinkedHashMap<String, String>();
+                for(Param param : params)
+                {
+                    config.put(param.getName(), param.sample(rng));
+                }
+                configs.add(config);
+            }
+            return configs;
+        }
+
+        for(Param param : params)
+        {
+            if(param.isRange())
+            {
+                System.err.println("[ERROR] SweepRunner.makeConfigs: ranges (" + param.getName()
+                    + ") can only be used with random search");
+                System.exit(-1);
+            }
+        }
+
+        // count through every combination of value idxs (like an odometer)
+        int[] valueIdxs = new int[params.size()];
+        while(true)
+        {
+            Map<String, String> config = new LinkedHashMap<String, String>();
+            for(int pIdx = 0; pIdx < params.size(); ++pIdx)
+            {
+                config.put(params.get(pIdx).getName(), params.get(pIdx).getValues().get(valueIdxs[pIdx]));
+            }
+            configs.add(config);
+
+            int pIdx = params.size() - 1;
+            while(pIdx >= 0 && ++valueIdxs[pIdx] == params.get(pIdx).getValues().size())
+            {
+                valueIdxs[pIdx] = 0;
+                --pIdx;
+            }
+            if(pIdx < 0)
+            {
+                return configs;
+            }
+        }
+    }
+
+    // base args + swept values + per-trial seed and output files (later args win)
+    private static Namespace makeTrialNamespace(List<String> baseArgs,
+                                                Map<String, String> config,
+                                                long seed,
+                                                File trialDir,
+                                                boolean hasMetrics)
+    {
+        List<String> args = new ArrayList<String>(baseArgs);
+        for(Map.Entry<String, String> entry : config.entrySet())
+        {
+            args.add("--" + entry.getKey());
+            args.add(entry.getValue());
+        }
+        args.add("--seed");
+        args.add(Long.toString(seed));
+        args.add("--outFile");
+        args.add(new File(trialDir, "qFunction").getPath());
+        if(hasMetrics)
+        {
+            args.add("--metricsFile");
+            args.add(new File(trialDir, "metrics.jsonl").getPath());
+        }
+
+        try
+        {
+            return Main.makeArgumentParser().parseArgs(args.toArray(new String[args.size()]));
+        } catch(ArgumentParserException e)
+        {
+            System.err.println("[ERROR] SweepRunner.makeTrialNamespace: invalid trial arguments " + args);
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        }
+        return null;
+    }
+
+    private static String join(List<String> values)
+    {
+        return String.join("\t", values);
+    }
+
+    private static void writeResults(File outDir,
+                                     List<Param> params,
+                                     List<Trial> trials,
+                                     int numConfigs)
+    {
+        List<String> paramNames = new ArrayList<String>();
+        for(Param param : params)
+        {
+            paramNames.add(param.getName());
+        }
+
+        // one row per trial
+        try(PrintWriter out = new PrintWriter(new File(outDir, "trials.tsv")))
+        {
+            out.println("trial\tconfig\t" + join(paramNames)
+                + "\tseed\tnumCycles\tfinalUtility\tbestUtility\tfinalGameLength\tstoppedEarly\tseconds");
+            for(Trial trial : trials)
+            {
+                out.println(trial.getTrialIdx() + "\t" + trial.getConfigIdx()
+                    + "\t" + join(new ArrayList<String>(trial.getConfig().values()))
+                    + "\t" + trial.getSeed() + "\t" + trial.getEvals().size()
+                    + "\t" + trial.getFinalUtility() + "\t" + trial.getBestUtility()
+                    + "\t" + trial.getFinalGameLength() + "\t" + trial.isStoppedEarly()
+                    + "\t" + String.format("%.1f", trial.getNumSeconds()));
+            }
+        } catch(IOException e)
+        {
+            System.err.println("[ERROR] SweepRunner.writeResults: unable to write trials.tsv to " + outDir);
+            e.printStackTrace();
+        }
+
+        // one row per config (mean +- stddev over seeds), best mean best-utility first
+        List<Integer> configIdxs = new ArrayList<Integer>();
+        double[] meanBest = new double[numConfigs];
+        double[] stdBest = new double[numConfigs];
+        double[] meanFinal = new double[numConfigs];
+        int[] numTrials = new int[numConfigs];
+        Trial[] firstTrials = new Trial[numConfigs];
+        for(Trial trial : trials)
+        {
+            int cIdx = trial.getConfigIdx();
+            numTrials[cIdx] += 1;
+            meanBest[cIdx] += trial.getBestUtility();
+            stdBest[cIdx] += trial.getBestUtility() * trial.getBestUtility();
+            meanFinal[cIdx] += trial.getFinalUtility();
+            if(firstTrials[cIdx] == null)
+            {
+                firstTrials[cIdx] = trial;
+            }
+        }
+        for(int cIdx = 0; cIdx < numConfigs; ++cIdx)
+        {
+            meanBest[cIdx] /= numTrials[cIdx];
+            stdBest[cIdx] = Math.sqrt(Math.max(stdBest[cIdx] / numTrials[cIdx] - meanBest[cIdx] * meanBest[cIdx], 0));
+            meanFinal[cIdx] /= numTrials[cIdx];
+            configIdxs.add(cIdx);
+        }
+        configIdxs.sort((a, b) -> Double.compare(meanBest[b], meanBest[a]));
+
+        String header = "config\t" + join(paramNames) + "\tnumSeeds\tmean(bestUtility)\tstd(bestUtility)\tmean(finalUtility)";
+        try(PrintWriter out = new PrintWriter(new File(outDir, "summary.tsv")))
+        {
+            out.println(header);
+            System.out.println(header);
+            for(int cIdx : configIdxs)
+            {
+                String row = cIdx + "\t" + join(new ArrayList<String>(firstTrials[cIdx].getConfig().values()))
+                    + "\t" + numTrials[cIdx] + "\t" + meanBest[cIdx] + "\t" + stdBest[cIdx] + "\t" + meanFinal[cIdx];
+                out.println(row);
+                System.out.println(row);
+            }
+        } catch(IOException e)
+        {
+            System.err.println("[ERROR] SweepRunner.writeResults: unable to write summary.tsv to " + outDir);
+            e.printStackTrace();
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        ArgumentParser parser = ArgumentParsers.newFor("SweepRunner").build()
+            .defaultHelp(true)
+            .description("Hyperparameter sweep over src.labs.cp.Main (unrecognized arguments go to every trial)");
+
+        parser.addArgument("--param")
+            .type(String.class)
+            .action(Arguments.append())
+            .required(true)
+            .help("a swept hyperparameter: name=v1,v2,... or (random search only) name=lo:hi, where name is a " +
+                  "long option of Main (e.g. lr, gamma, miniBatchSize, maxBufferSize, replacementType)");
+        parser.addArgument("--searchType")
+            .type(SearchType.class)
+            .setDefault(SearchType.GRID)
+            .help("GRID runs every combination of values, RANDOM runs --numSamples random combinations");
+        parser.addArgument("--numSamples")
+            .type(Integer.class)
+            .setDefault(10)
+            .help("the number of configurations to try when doing random search");
+        parser.addArgument("--numSeeds")
+            .type(Integer.class)
+            .setDefault(1)
+            .help("every configuration is trained once per seed (seeds are --firstSeed, --firstSeed + 1, ...)");
+        parser.addArgument("--firstSeed")
+            .type(Long.class)
+            .setDefault(Main.SEED)
+            .help("the first trial seed (also seeds random search)");
+        parser.addArgument("--numParallelTrials")
+            .type(Integer.class)
+            .setDefault(Runtime.getRuntime().availableProcessors())
+            .help("the number of trials that train at the same time");
+        parser.addArgument("--earlyStopAfter")
+            .type(Integer.class)
+            .setDefault(0)
+            .help("if > 0, starting with this cycle a trial stops as soon as its best eval utility is below the " +
+                  "median of the other trials' best utilities after as many cycles. If 0, every trial runs every cycle");
+        parser.addArgument("--outDir")
+            .type(String.class)
+            .setDefault("./sweep")
+            .help("where trial checkpoints and the results tables go");
+
+        List<String> baseArgs = new ArrayList<String>();
+        Namespace ns = null;
+        try
+        {
+            ns = parser.parseKnownArgs(args, baseArgs);
+        } catch(ArgumentParserException e)
+        {
+            parser.handleError(e);
+            System.exit(-1);
+        }
+
+        // every trial's evaluator gets its share of the cores (unless told otherwise), so that
+        // numParallelTrials trials don't each start a pool of availableProcessors() eval threads
+        boolean setsNumEvalThreads = false;
+        for(String arg : baseArgs)
+        {
+            setsNumEvalThreads |= arg.equals("--numEvalThreads") || arg.startsWith("--numEvalThreads=");
+        }
+        for(String spec : ns.<List<String>>get("param"))
+        {
+            setsNumEvalThreads |= spec.startsWith("numEvalThreads=");
+        }
+        if(!setsNumEvalThreads)
+        {
+            int numParallelTrials = Math.max(ns.<Integer>get("numParallelTrials"), 1);
+            baseArgs.add("--numEvalThreads");
+            baseArgs.add(Integer.toString(Math.max(Runtime.getRuntime().availableProcessors() / numParallelTrials, 1)));
+        }
+
+        // make sure the base args are valid before starting anything
+        Namespace baseNs = makeTrialNamespace(baseArgs, new LinkedHashMap<String, String>(), Main.SEED,
+                                              new File("."), false);
+        if(!baseNs.<String>get("replayFile").isEmpty())
+        {
+            System.err.println("[ERROR] SweepRunner.main: trials can't share a --replayFile");
+            System.exit(-1);
+        }
+        boolean hasMetrics = !baseNs.<String>get("metricsFile").isEmpty();
+
+        List<Param> params = new ArrayList<Param>();
+        for(String spec : ns.<List<String>>get("param"))
+        {
+            params.add(new Param(spec));
+        }
+
+        long firstSeed = ns.get("firstSeed");
+        List<Map<String, String>> configs = makeConfigs(params, ns.get("searchType"), ns.get("numSamples"),
+                                                        new Random(firstSeed));
+
+        File outDir = new File(ns.<String>get("outDir"));
+        int numSeeds = ns.get("numSeeds");
+        List<Trial> trials = new ArrayList<Trial>();
+        for(int cIdx = 0; cIdx < configs.size(); ++cIdx)
+        {
+            for(int sIdx = 0; sIdx < numSeeds; ++sIdx)
+            {
+                int trialIdx = trials.size();
+                File trialDir = new File(outDir, "trial" + trialIdx);
+                if(!trialDir.isDirectory() && !trialDir.mkdirs())
+                {
+                    System.err.println("[ERROR] SweepRunner.main: unable to create " + trialDir);
+                    System.exit(-1);
+                }
+                trials.add(new Trial(trialIdx, cIdx, configs.get(cIdx), firstSeed + sIdx,
+                                     makeTrialNamespace(baseArgs, configs.get(cIdx), firstSeed + sIdx, trialDir,
+                                                        hasMetrics)));
+            }
+        }
+
+        int earlyStopAfter = ns.get("earlyStopAfter");
+        MedianStoppingRule stoppingRule = earlyStopAfter > 0 ? new MedianStoppingRule(earlyStopAfter) : null;
+
+        System.out.println("[INFO] SweepRunner.main: running " + trials.size() + " trials (" + configs.size()
+            + " configs x " + numSeeds + " seeds)");
+        for(Trial trial : trials)
+        {
+            System.out.println("[INFO] SweepRunner.main: " + trial.getName() + " " + trial.getConfig()
+                + " seed=" + trial.getSeed());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(ns.<Integer>get("numParallelTrials"));
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for(Trial trial : trials)
+        {
+            futures.add(pool.submit(() -> trial.run(stoppingRule)));
+        }
+        for(Future<?> future : futures)
+        {
+            try
+            {
+                future.get();
+            } catch(InterruptedException | ExecutionException e)
+            {
+                System.err.println("[ERROR] SweepRunner.main: a trial failed");
+                e.printStackTrace();
+            }
+        }
+        pool.shutdown();
+
+        writeResults(outDir, params, trials, configs.size());
+    }
+}
@@ -0,0 +1,151 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// JAVA PROJECT IMPORTS
+
+
+/**
+ * Per-phase timers and counters for a training cycle. Every phase accumulates the total time spent in it and
+ * how many times it happened (e.g. ENV_STEP counts environment steps, UPDATE counts gradient steps).
+ * Timing a phase is just two System.nanoTime() calls and two LongAdder adds, so it is cheap enough for the hot
+ * loop, and it is safe to record from several threads at once (e.g. the actors of an ActorLearnerPipeline).
+ * A disabled instance records nothing (and doesn't even read the clock).
+ *
+ * Usage:
+ *      long start = metrics.start();
+ *      ... do the work ...
+ *      metrics.stop(TrainingMetrics.Phase.ENV_STEP, start);
+ */
+public class TrainingMetrics
+    extends Object
+{
+    public static enum Phase
+    {
+        ENV_STEP("envStep"),                        // game.step (one count per environment step)
+        ACTION_SELECTION("actionSelection"),        // q-function forward passes used to pick actions
+        TARGET_COMPUTATION("targetComputation"),    // bellman targets (forward passes of the target q-function)
+        UPDATE("update"),                           // forward + backward + optimizer step (one count per step)
+        CHECKPOINT("checkpoint"),                   // saving the model (and flushing the replay buffer)
+        EVAL("eval");                               // playing the eval games
+
+        private final String jsonName;
+
+        private Phase(String jsonName) { this.jsonName = jsonName; }
+
+        public final String getJsonName() { return this.jsonName; }
+    }
+
+    private static final TrainingMetrics DISABLED = new TrainingMetrics(false);
+
+    private final boolean       isEnabled;
+    private final LongAdder[]   totalNanos;
+    private final LongAdder[]   counts;
+    private long                cycleStartNanos;
+
+    public TrainingMetrics(boolean isEnabled)
+    {
+        this.isEnabled = isEnabled;
+        this.totalNanos = new LongAdder[Phase.values().length];
+        this.counts = new LongAdder[Phase.values().length];
+        for(Phase phase : Phase.values())
+        {
+            this.totalNanos[phase.ordinal()] = new LongAdder();
+            this.counts[phase.ordinal()] = new LongAdder();
+        }
+        this.startCycle();
+    }
+
+    // a shared instance that ignores everything
+    public static TrainingMetrics disabled() { return DISABLED; }
+
+    public final boolean isEnabled() { return this.isEnabled; }
+
+    public long getTotalNanos(Phase phase) { return this.totalNanos[phase.ordinal()].sum(); }
+    public long getCount(Phase phase) { return this.counts[phase.ordinal()].sum(); }
+
+    public long start()
+    {
+        return this.isEnabled() ? System.nanoTime() : 0l;
+    }
+
+    public void stop(Phase phase,
+                     long startNanos)
+    {
+        this.stop(phase, startNanos, 1);
+    }
+
+    // same as above but the timed work counts as count events of phase (e.g. stepping N games at once)
+    public void stop(Phase phase,
+                     long startNanos,
+                     long count)
+    {
+        if(this.isEnabled())
+        {
+            this.totalNanos[phase.ordinal()].add(System.nanoTime() - startNanos);
+            this.counts[phase.ordinal()].add(count);
+        }
+    }
+
+    // zero every timer and counter and start the clock for the cycle's wall time
+    public void startCycle()
+    {
+        for(Phase phase : Phase.values())
+        {
+            this.totalNanos[phase.ordinal()].reset();
+            this.counts[phase.ordinal()].reset();
+        }
+        this.cycleStartNanos = System.nanoTime();
+    }
+
+    public double getCycleSeconds() { return (System.nanoTime() - this.cycleStartNanos) / 1e9; }
+
+    /**
+     * One JSON object (on one line) describing the cycle so far: its wall time, steps/sec and updates/sec, and
+     * for every phase its total seconds and count. avgUtility and avgGameLength are the cycle's eval results.
+     */
+    public String toJson(long cycleIdx,
+                         double avgUtility,
+                         double avgGameLength)
+    {
+        double cycleSeconds = this.getCycleSeconds();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"cycle\":").append(cycleIdx);
+        sb.append(",\"avgUtility\":").append(avgUtility);
+        sb.append(",\"avgGameLength\":").append(avgGameLength);
+        sb.append(",\"cycleSeconds\":").append(cycleSeconds);
+        sb.append(",\"stepsPerSec\":").append(this.getCount(Phase.ENV_STEP) / cycleSeconds);
+        sb.append(",\"updatesPerSec\":").append(this.getCount(Phase.UPDATE) / cycleSeconds);
+        for(Phase phase : Phase.values())
+        {
+            sb.append(",\"").append(phase.getJsonName()).append("\":{\"seconds\":")
+              .append(this.getTotalNanos(phase) / 1e9)
+              .append(",\"count\":").append(this.getCount(phase)).append("}");
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+
+    // appends toJson(...) as a line of the jsonl file at path
+    public void appendJson(String path,
+                           long cycleIdx,
+                           double avgUtility,
+                           double avgGameLength)
+    {
+        try(PrintWriter out = new PrintWriter(new FileWriter(path, true)))
+        {
+            out.println(this.toJson(cycleIdx, avgUtility, avgGameLength));
+        } catch(IOException e)
+        {
+            System.err.println("[ERROR] TrainingMetrics.appendJson: unable to write to " + path);
+            e.printStackTrace();
+        }
+    }
+}
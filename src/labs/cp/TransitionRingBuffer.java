@@ -0,0 +1,174 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.linalg.Matrix;
+
+
+/**
+ * A bounded, lock-free queue of transitions (s, r, s') that many actor threads can publish into and a single
+ * learner thread drains (into a ReplayBuffer). Every slot is preallocated, so publishing and draining never
+ * allocate. Each slot carries a sequence number that tells producers when it is free to be claimed and the
+ * consumer when it has been fully written (the bounded queue design by Dmitry Vyukov):
+ *      - slot i is free for the producer that claimed position p when sequence[i] == p
+ *      - slot i holds the transition published at position p when sequence[i] == p + 1
+ */
+public class TransitionRingBuffer
+    extends Object
+{
+    private final int               mask;
+    private final int               dim;
+
+    private final double[][]        prevStates;
+    private final double[]          rewards;
+    private final double[][]        nextStates;
+    private final boolean[]         isTerminal;
+    private final int[]             streamIdxs;
+    private final AtomicLongArray   sequence;
+
+    private final AtomicLong        enqueuePos;
+    private long                    dequeuePos;     // only touched by the (single) consumer
+
+    public TransitionRingBuffer(int minCapacity,
+                                int dim)
+    {
+        int capacity = 1;
+        while(capacity < minCapacity)
+        {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.dim = dim;
+
+        this.prevStates = new double[capacity][dim];
+        this.rewards = new double[capacity];
+        this.nextStates = new double[capacity][dim];
+        this.isTerminal = new boolean[capacity];
+        this.streamIdxs = new int[capacity];
+        this.sequence = new AtomicLongArray(capacity);
+        for(int idx = 0; idx < capacity; ++idx)
+        {
+            this.sequence.set(idx, idx);
+        }
+
+        this.enqueuePos = new AtomicLong(0);
+        this.dequeuePos = 0;
+    }
+
+    public final int getCapacity() { return this.mask + 1; }
+    public final int getDim() { return this.dim; }
+
+    /**
+     * Publishes (prevState, reward, nextState) from stream streamIdx (e.g. the index of the actor that produced it,
+     * see ReplayBuffer.addSamples). nextState is ignored (and may be null) if isTerminal.
+     * Returns false (without blocking) if the buffer is full. Safe to call from any number of threads.
+     */
+    public boolean offer(int streamIdx,
+                         double[] prevState,
+                         double reward,
+                         double[] nextState,
+                         boolean isTerminal)
+    {
+        long pos = this.enqueuePos.get();
+        int idx;
+        while(true)
+        {
+            idx = (int)(pos & this.mask);
+            long diff = this.sequence.get(idx) - pos;
+            if(diff == 0)
+            {
+                // slot is free, try to claim it
+                if(this.enqueuePos.compareAndSet(pos, pos + 1))
+                {
+                    break;
+                }
+                pos = this.enqueuePos.get();
+            }
+            else if(diff < 0)
+            {
+                // the consumer hasn't gotten to this slot yet: we're full
+                return false;
+            }
+            else
+            {
+                // another producer beat us to this position
+                pos = this.enqueuePos.get();
+            }
+        }
+
+        System.arraycopy(prevState, 0, this.prevStates[idx], 0, this.getDim());
+        this.rewards[idx] = reward;
+        if(!isTerminal)
+        {
+            System.arraycopy(nextState, 0, this.nextStates[idx], 0, this.getDim());
+        }
+        this.isTerminal[idx] = isTerminal;
+        this.streamIdxs[idx] = streamIdx;
+
+        // publish: the consumer may now read this slot
+        this.sequence.set(idx, pos + 1);
+        return true;
+    }
+
+    /**
+     * Moves up to k published transitions at a time into rb (through rb.addSamples) until the buffer is empty
+     * (or until one buffer's worth of transitions has been moved, so that fast producers can't keep us here
+     * forever). stagingPrev/stagingNext must be (k x dim) and stagingRewards/stagingTerminal/stagingStreamIdxs
+     * must have length k.
+     * Must only be called by one thread. Returns the number of transitions moved.
+     */
+    public int drainTo(ReplayBuffer rb,
+                       Matrix stagingPrev,
+                       double[] stagingRewards,
+                       Matrix stagingNext,
+                       boolean[] stagingTerminal,
+                       int[] stagingStreamIdxs)
+    {
+        int numDrained = 0;
+        int numStaged = 0;
+        while(true)
+        {
+            long pos = this.dequeuePos;
+            int idx = (int)(pos & this.mask);
+            boolean isPublished = numDrained + numStaged < this.getCapacity()
+                && this.sequence.get(idx) == pos + 1;
+
+            if(isPublished)
+            {
+                for(int cIdx = 0; cIdx < this.getDim(); ++cIdx)
+                {
+                    stagingPrev.set(numStaged, cIdx, this.prevStates[idx][cIdx]);
+                    if(!this.isTerminal[idx])
+                    {
+                        stagingNext.set(numStaged, cIdx, this.nextStates[idx][cIdx]);
+                    }
+                }
+                stagingRewards[numStaged] = this.rewards[idx];
+                stagingTerminal[numStaged] = this.isTerminal[idx];
+                stagingStreamIdxs[numStaged] = this.streamIdxs[idx];
+                numStaged += 1;
+
+                // hand the slot back to the producers (for the position one lap ahead)
+                this.sequence.set(idx, pos + this.mask + 1);
+                this.dequeuePos = pos + 1;
+            }
+
+            if(numStaged > 0 && (!isPublished || numStaged == stagingRewards.length))
+            {
+                rb.addSamples(stagingPrev, stagingRewards, stagingNext, stagingTerminal, numStaged, stagingStreamIdxs);
+                numDrained += numStaged;
+                numStaged = 0;
+            }
+
+            if(!isPublished)
+            {
+                return numDrained;
+            }
+        }
+    }
+}
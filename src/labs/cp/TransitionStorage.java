@@ -0,0 +1,98 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.linalg.Matrix;
+
+
+/**
+ * Where a ReplayBuffer keeps its transitions (s, r, s', isTerminal), one per row, along with the two indices
+ * the buffer needs to keep its replacement policy going (how many rows are filled and which row was written
+ * last). Keeping those indices in the storage lets persistent backends reopen a buffer exactly where it left off.
+ */
+public abstract class TransitionStorage
+    extends Object
+{
+    // the in-memory backends (see create)
+    public static enum Type
+    {
+        MATRIX,     // MatrixTransitionStorage: Matrix objects + boolean[]
+        FLOAT64,    // ArrayTransitionStorage: flat double[] arrays + BitSet
+        FLOAT32;    // ArrayTransitionStorage: flat float[] arrays + BitSet (half the memory, float precision)
+    }
+
+    public static TransitionStorage create(Type type,
+                                           int numSamples,
+                                           int dim)
+    {
+        switch(type)
+        {
+            case MATRIX:
+                return new MatrixTransitionStorage(numSamples, dim);
+            case FLOAT64:
+                return new ArrayTransitionStorage.Float64(numSamples, dim);
+            case FLOAT32:
+                return new ArrayTransitionStorage.Float32(numSamples, dim);
+            default:
+                System.err.println("[ERROR] TransitionStorage.create: unknown storage type " + type);
+                System.exit(-1);
+        }
+        return null;
+    }
+
+    public abstract int getCapacity();
+    public abstract int getDim();
+
+    public abstract int getSize();
+    public abstract void setSize(int size);
+    public abstract int getNewestSampleIdx();
+    public abstract void setNewestSampleIdx(int rowIdx);
+
+    public abstract double getPrevState(int rowIdx, int colIdx);
+    public abstract void setPrevState(int rowIdx, int colIdx, double value);
+
+    public abstract double getReward(int rowIdx);
+    public abstract void setReward(int rowIdx, double value);
+
+    // the value of s' is undefined for terminal rows
+    public abstract double getNextState(int rowIdx, int colIdx);
+    public abstract void setNextState(int rowIdx, int colIdx, double value);
+
+    public abstract boolean isTerminal(int rowIdx);
+    public abstract void setTerminal(int rowIdx, boolean isTerminal);
+
+    // copy s for the first numRows rows in rowIdxs into the first numRows rows of dst. Backends with flat storage
+    // override these to read their arrays directly instead of going through getPrevState/getNextState
+    public void copyPrevStates(int[] rowIdxs,
+                               int numRows,
+                               Matrix dst)
+    {
+        for(int idx = 0; idx < numRows; ++idx)
+        {
+            for(int cIdx = 0; cIdx < this.getDim(); ++cIdx)
+            {
+                dst.set(idx, cIdx, this.getPrevState(rowIdxs[idx], cIdx));
+            }
+        }
+    }
+
+    // same as copyPrevStates but for s' (only meaningful for non-terminal rows)
+    public void copyNextStates(int[] rowIdxs,
+                               int numRows,
+                               Matrix dst)
+    {
+        for(int idx = 0; idx < numRows; ++idx)
+        {
+            for(int cIdx = 0; cIdx < this.getDim(); ++cIdx)
+            {
+                dst.set(idx, cIdx, this.getNextState(rowIdxs[idx], cIdx));
+            }
+        }
+    }
+
+    // make sure everything written so far survives the jvm exiting (no-op for in-memory storage)
+    public void flush() {}
+}
@@ -0,0 +1,113 @@
+package src.labs.cp;
+
+
+// SYSTEM IMPORTS
+import java.util.Random;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.cp.game.Game;
+import edu.bu.cp.linalg.Matrix;
+import edu.bu.cp.utils.Triple;
+
+
+/**
+ * N independent CartPole games that are stepped in lockstep. The current state of every game is kept stacked
+ * in an (N x dim) matrix so that a policy can pick actions for all of them with a single forward pass.
+ * Games that finish are reset automatically, so every row of getStates() is always a live state.
+ */
+public class VectorizedGame
+    extends Object
+{
+    public static final int STATE_DIM = 4;
+
+    private final Game[]    games;
+
+    // current (N x dim) states, and the (N x dim) states the last step() left each game in
+    private final Matrix    states;
+    private final Matrix    nextStates;
+
+    // per-game results of the last step()
+    private final double[]  rewards;
+    private final boolean[] isDone;
+
+    public VectorizedGame(int numGames,
+                          Random rng)
+    {
+        // every game gets its own rng (derived from rng) so that the games don't share a random stream
+        this.games = new Game[numGames];
+        for(int gIdx = 0; gIdx < numGames; ++gIdx)
+        {
+            this.games[gIdx] = new Game(new Random(rng.nextLong()));
+        }
+
+        this.states = Matrix.zeros(numGames, STATE_DIM);
+        this.nextStates = Matrix.zeros(numGames, STATE_DIM);
+        this.rewards = new double[numGames];
+        this.isDone = new boolean[numGames];
+
+        for(int gIdx = 0; gIdx < numGames; ++gIdx)
+        {
+            this.resetGame(gIdx);
+        }
+    }
+
+    public final int getNumGames() { return this.games.length; }
+    public final Matrix getStates() { return this.states; }
+    public final Matrix getNextStates() { return this.nextStates; }
+    public final double[] getRewards() { return this.rewards; }
+    public final boolean[] getIsDone() { return this.isDone; }
+
+    private Game getGame(int gIdx) { return this.games[gIdx]; }
+
+    private void copyRow(Matrix src,
+                         int srcRowIdx,
+                         Matrix dst,
+                         int dstRowIdx)
+    {
+        for(int cIdx = 0; cIdx < STATE_DIM; ++cIdx)
+        {
+            dst.set(dstRowIdx, cIdx, src.get(srcRowIdx, cIdx));
+        }
+    }
+
+    private void resetGame(int gIdx)
+    {
+        this.copyRow(this.getGame(gIdx).reset(), 0, this.getStates(), gIdx);
+    }
+
+    /**
+     * Steps game i with actions[i]. Afterwards, getRewards()[i] and getIsDone()[i] hold that game's reward and
+     * whether it ended, and (if it didn't end) row i of getNextStates() holds the state it moved to.
+     * Once you are done reading those (e.g. after adding the transitions to a replay buffer) call advance() to
+     * move every game onto its next state (resetting the ones that finished).
+     */
+    public void step(int[] actions)
+    {
+        for(int gIdx = 0; gIdx < this.getNumGames(); ++gIdx)
+        {
+            Triple<Matrix, Double, Boolean> obs = this.getGame(gIdx).step(actions[gIdx]);
+            this.getRewards()[gIdx] = obs.getSecond();
+            this.getIsDone()[gIdx] = obs.getThird();
+            if(!this.getIsDone()[gIdx])
+            {
+                this.copyRow(obs.getFirst(), 0, this.getNextStates(), gIdx);
+            }
+        }
+    }
+
+    public void advance()
+    {
+        for(int gIdx = 0; gIdx < this.getNumGames(); ++gIdx)
+        {
+            if(this.getIsDone()[gIdx])
+            {
+                this.resetGame(gIdx);
+            }
+            else
+            {
+                this.copyRow(this.getNextStates(), gIdx, this.getStates(), gIdx);
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package src.pas.tetris.agents;
+
+
+// SYSTEM IMPORTS
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.pas.tetris.game.Block;
+import edu.bu.pas.tetris.game.Board;
+import edu.bu.pas.tetris.game.Game.GameView;
+import edu.bu.pas.tetris.game.minos.Mino;
+import edu.bu.pas.tetris.game.minos.Mino.MinoType;
+import edu.bu.pas.tetris.game.minos.Mino.Orientation;
+import edu.bu.pas.tetris.linalg.Matrix;
+import edu.bu.pas.tetris.utils.Coordinate;
+import edu.bu.pas.tetris.utils.Pair;
+
+
+/**
+ * Beam search over the current mino and the preview. Depth 1 is every placement of the current mino (exactly the
+ * ones the game offers). Each deeper level places the next mino of the preview on the board left by its parent
+ * (full lines cleared and the score updated like the game does), so depth 3 reaches the second preview mino. Every
+ * (state, placement) pair is scored with the q-function, one batched forward pass per level, plus the points the
+ * earlier placements on its path scored (the q-function only covers what happens from its own state on), and only
+ * the beamWidth best survive to be expanded. The move is the first placement on the path to the best leaf.
+ *
+ * A placement that loses the game (or leaves no room for the next mino) is worth LOSS_VALUE, below any line that
+ * survives. A line that simply runs out of preview can't be expanded and keeps competing with the value it has.
+ *
+ * The game only gives us the placements of the current mino, so deeper levels use hard drops (every orientation
+ * and column, dropped straight down), which misses tucks and spins but is cheap.
+ *
+ * Building the child boards and their features is independent per beam entry, so every level is spread over the
+ * planner's threads (every task gets its own BoardAnalysis). The q-function is only ever called from the calling
+ * thread. If the time budget runs out the deepest fully scored level decides (with the placements already known to
+ * lose pushed to the back), which at depth 1 is the greedy choice.
+ */
+public class BeamSearchPlanner
+    extends Object
+{
+    public static final double LOSS_VALUE = Double.NEGATIVE_INFINITY;
+
+    // a placement of a mino in view, reached by playing rootMove now
+    private static class Candidate
+        extends Object
+    {
+        private final GameView  view;
+        private final Mino      placement;
+        private final Mino      rootMove;
+        private final double    pathReward; // points scored by the placements before this one
+        private double          rootQValue;
+        private double          value;      // pathReward + q-value, or LOSS_VALUE
+        private GameView        child;      // view after the placement, null until expanded
+
+        public Candidate(GameView view,
+                         Mino placement,
+                         Mino rootMove,
+                         double pathReward)
+        {
+            this.view = view;
+            this.placement = placement;
+            this.rootMove = rootMove;
+            this.pathReward = pathReward;
+            this.rootQValue = 0;
+            this.value = 0;
+            this.child = null;
+        }
+
+        public final GameView getView() { return this.view; }
+        public final Mino getPlacement() { return this.placement; }
+        public final Mino getRootMove() { return this.rootMove; }
+        public final double getPathReward() { return this.pathReward; }
+        public final double getRootQValue() { return this.rootQValue; }
+        public final double getValue() { return this.value; }
+        public final GameView getChild() { return this.child; }
+
+        // the placement ends the game (lost, or no room for the next mino)
+        public boolean isLoss()
+        {
+            return this.getChild() != null
+                && (this.getChild().didAgentLose()
+                    || (!this.isPreviewExhausted() && this.getChild().getFinalMinoPositions().isEmpty()));
+        }
+
+        // there is no next mino to place after this one
+        public boolean isPreviewExhausted()
+        {
+            return this.getView().getNextThreeMinoTypes().isEmpty();
+        }
+    }
+
+    private final TetrisQAgent      qAgent;
+    private final int               maxDepth;
+    private final int               beamWidth;
+    private final long              timeBudgetNanos;
+    private final ExecutorService   executor;
+
+    public BeamSearchPlanner(TetrisQAgent qAgent,
+                             int maxDepth,
+                             int beamWidth,
+                             long timeBudgetMillis,
+                             int numThreads)
+    {
+        this.qAgent = qAgent;
+        this.maxDepth = maxDepth;
+        this.beamWidth = beamWidth;
+        this.timeBudgetNanos = timeBudgetMillis * 1000000L;
+        this.executor = Executors.newFixedThreadPool(numThreads, runnable ->
+        {
+            Thread thread = new Thread(runnable, "tetris-planner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public final TetrisQAgent getQAgent() { return this.qAgent; }
+    public final int getMaxDepth() { return this.maxDepth; }
+    public final int getBeamWidth() { return this.beamWidth; }
+    public final long getTimeBudgetNanos() { return this.timeBudgetNanos; }
+    private ExecutorService getExecutor() { return this.executor; }
+
+    /**
+     * The move to make in game and its (depth 1) q-value. At depth 1 this is the same move as
+     * TetrisQAgent.getBestActionAndQValue (ties go to the first placement).
+     */
+    public Pair<Mino, Double> plan(final GameView game)
+    {
+        long deadline = System.nanoTime() + this.getTimeBudgetNanos();
+
+        List<Candidate> ranked = new ArrayList<Candidate>(game.getFinalMinoPositions().size());
+        for(Mino placement : game.getFinalMinoPositions())
+        {
+            ranked.add(new Candidate(game, placement, placement, 0.0));
+        }
+        this.score(ranked);
+        for(Candidate candidate : ranked)
+        {
+            candidate.rootQValue = candidate.getValue();
+        }
+        sort(ranked);
+
+        for(int depth = 2; depth <= this.getMaxDepth() && System.nanoTime() < deadline; ++depth)
+        {
+            List<Candidate> beam = ranked.subList(0, Math.min(this.getBeamWidth(), ranked.size()));
+            this.expand(beam);
+            if(System.nanoTime() >= deadline)
+            {
+                // expanding found the placements that lose, which we don't need a q-value for
+                sort(ranked);
+                break;
+            }
+
+            List<Candidate> next = new ArrayList<Candidate>();
+            for(Candidate parent : beam)
+            {
+                if(parent.isLoss() || parent.isPreviewExhausted())
+                {
+                    // a leaf: keeps competing with the value it has (LOSS_VALUE if it lost)
+                    next.add(parent);
+                    continue;
+                }
+                double pathReward = parent.getPathReward() + parent.getChild().getScoreThisTurn();
+                for(Mino placement : parent.getChild().getFinalMinoPositions())
+                {
+                    Candidate candidate = new Candidate(parent.getChild(), placement, parent.getRootMove(), pathReward);
+                    candidate.rootQValue = parent.getRootQValue();
+                    next.add(candidate);
+                }
+            }
+            this.score(next);
+            sort(next);
+            ranked = next;
+        }
+
+        Candidate best = ranked.get(0);
+        return new Pair<Mino, Double>(best.getRootMove(), best.getRootQValue());
+    }
+
+    // highest value first, ties keep their order
+    private static void sort(List<Candidate> candidates)
+    {
+        candidates.sort(Comparator.comparingDouble((Candidate c) -> c.getValue()).reversed());
+    }
+
+    // value of every candidate that doesn't have one yet (leaves keep theirs): features in parallel, one forward
+    // pass
+    private void score(List<Candidate> candidates)
+    {
+        List<Candidate> unscored = new ArrayList<Candidate>(candidates.size());
+        for(Candidate candidate : candidates)
+        {
+            if(candidate.getChild() == null)
+            {
+                unscored.add(candidate);
+            }
+        }
+        if(unscored.isEmpty())
+        {
+            return;
+        }
+
+        Matrix qInputs = Matrix.zeros(unscored.size(), TetrisQAgent.NUM_FEATURES);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        int startIdx = 0;
+        while(startIdx < unscored.size())
+        {
+            // candidates of the same view are contiguous, so one task per view analyzes its board once
+            GameView view = unscored.get(startIdx).getView();
+            int endIdx = startIdx;
+            while(endIdx < unscored.size() && unscored.get(endIdx).getView() == view)
+            {
+                ++endIdx;
+            }
+
+            final int fromIdx = startIdx;
+            final int toIdx = endIdx;
+            futures.add(this.getExecutor().submit(() ->
+            {
+                BoardAnalysis analysis = new BoardAnalysis(view.getBoard());
+                for(int cIdx = fromIdx; cIdx < toIdx; ++cIdx)
+                {
+                    TetrisQAgent.setQFunctionInput(view, analysis, unscored.get(cIdx).getPlacement(), qInputs, cIdx);
+                }
+            }));
+            startIdx = endIdx;
+        }
+        waitFor(futures);
+
+        try
+        {
+            Matrix qValues = this.getQAgent().getQFunction().forward(qInputs);
+            if(qValues.getShape().getNumRows() != unscored.size() || qValues.getShape().getNumCols() != 1)
+            {
+                throw new Exception("[ERROR]: BeamSearchPlanner.score: output of Qfunction should "
+                    + "have shape (" + unscored.size() + ",1) but got " + qValues.getShape());
+            }
+            for(int cIdx = 0; cIdx < unscored.size(); ++cIdx)
+            {
+                unscored.get(cIdx).value = unscored.get(cIdx).getPathReward() + qValues.get(cIdx, 0);
+            }
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    // build the view after each candidate's placement (in parallel), and give the ones that lose LOSS_VALUE
+    private void expand(List<Candidate> candidates)
+    {
+        List<Future<?>> futures = new ArrayList<Future<?>>(candidates.size());
+        for(Candidate candidate : candidates)
+        {
+            if(candidate.getChild() == null)
+            {
+                futures.add(this.getExecutor().submit(() ->
+                {
+                    candidate.child = getViewAfter(candidate.getView(), candidate.getPlacement());
+                }));
+            }
+        }
+        waitFor(futures);
+
+        for(Candidate candidate : candidates)
+        {
+            if(candidate.isLoss())
+            {
+                candidate.value = LOSS_VALUE;
+            }
+        }
+    }
+
+    private static void waitFor(List<Future<?>> futures)
+    {
+        try
+        {
+            for(Future<?> future : futures)
+            {
+                future.get();
+            }
+        } catch(Exception e)
+        {
+            System.err.println("[ERROR] BeamSearchPlanner.waitFor: error caught while planning");
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * What the game would look like after placing mino in view: full lines cleared, the score for them added,
+     * and the next mino of the preview up with its hard drop placements.
+     */
+    public static GameView getViewAfter(final GameView view,
+                                        final Mino mino)
+    {
+        Board board = new Board(view.getBoard());
+        board.addMino(mino);
+        List<Integer> clearedLines = board.clearFullLines();
+
+        // same points as the game (minus t-spins)
+        int scoreThisTurn = 0;
+        if(board.isClear())
+        {
+            scoreThisTurn = 6;
+        } else if(clearedLines.size() >= 4)
+        {
+            scoreThisTurn = 4;
+        } else
+        {
+            scoreThisTurn = clearedLines.size();
+        }
+
+        Queue<MinoType> minoTypes = new LinkedList<MinoType>(view.getNextThreeMinoTypes());
+        MinoType nextType = minoTypes.poll();
+        Set<Mino> placements = nextType == null
+            ? new LinkedHashSet<Mino>()
+            : getHardDropPositions(board, nextType);
+        return new GameView(placements, board, minoTypes, view.getTotalScore() + scoreThisTurn, scoreThisTurn);
+    }
+
+    // every distinct spot a mino of type can be hard dropped to (every orientation, every column)
+    public static Set<Mino> getHardDropPositions(final Board board,
+                                                 final MinoType type)
+    {
+        Set<Mino> positions = new LinkedHashSet<Mino>();
+        Set<Long> seenCells = new HashSet<Long>(); // e.g. every orientation of an O covers the same cells
+
+        int numOrientations = Mino.create(type, new Coordinate(0, 0)).getNumUniqueOrientations();
+        for(int oIdx = 0; oIdx < numOrientations; ++oIdx)
+        {
+            Orientation orientation = Orientation.values()[oIdx];
+            for(int x = -2; x < Board.NUM_COLS + 2; ++x)
+            {
+                // the highest spot in this column where the mino fits on the board
+                Mino mino = null;
+                for(int y = -4; y < Board.NUM_ROWS && mino == null; ++y)
+                {
+                    Mino candidate = Mino.create(type, new Coordinate(x, y), orientation);
+                    if(board.isInBounds(candidate.getBlocks()))
+                    {
+                        mino = candidate;
+                    }
+                }
+                if(mino == null || !board.isLegalPosition(mino.getBlocks()))
+                {
+                    continue;
+                }
+
+                while(!board.isFinalMinoPosition(mino.getBlocks()))
+                {
+                    mino = mino.moveDown();
+                }
+                if(seenCells.add(getCellsKey(mino)))
+                {
+                    positions.add(mino);
+                }
+            }
+        }
+        return positions;
+    }
+
+    // the (sorted) cell indices of mino packed into a long
+    private static long getCellsKey(final Mino mino)
+    {
+        Block[] blocks = mino.getBlocks();
+        int[] cellIdxs = new int[blocks.length];
+        for(int bIdx = 0; bIdx < blocks.length; ++bIdx)
+        {
+            Coordinate coord = blocks[bIdx].getCoordinate();
+            cellIdxs[bIdx] = coord.getYCoordinate() * Board.NUM_COLS + coord.getXCoordinate();
+        }
+        Arrays.sort(cellIdxs);
+
+        long key = 0;
+        for(int cellIdx : cellIdxs)
+        {
+            key = key * (Board.NUM_ROWS * Board.NUM_COLS) + cellIdx;
+        }
+        return key;
+    }
+}
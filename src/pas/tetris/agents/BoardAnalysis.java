@@ -0,0 +1,199 @@
+package src.pas.tetris.agents;
+
+
+// SYSTEM IMPORTS
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.pas.tetris.game.Block;
+import edu.bu.pas.tetris.game.Board;
+import edu.bu.pas.tetris.game.minos.Mino;
+import edu.bu.pas.tetris.utils.Coordinate;
+
+
+/**
+ * A bitboard view of a (background) board and everything we want to know about it: one int mask per row (bit x
+ * set if column x is filled) and one per column (bit y set if row y is filled). A single scan of the board fills
+ * in the masks, after which column heights, fill counts, holes, wells, bumpiness and full rows are all a few bit
+ * operations each. analyze() reuses the same arrays, so reanalyzing a board doesn't allocate.
+ *
+ * Within a turn every candidate placement shares the same background board, so the agent analyzes the board once
+ * per turn and then, for every candidate, calls place() which only looks at the (at most 4) cells the mino
+ * occupies. The placed queries describe the board with that mino added.
+ *
+ * Coordinates are the game's: x is the column, y is the row, and y = 0 is the top of the board.
+ */
+public class BoardAnalysis
+    extends Object
+{
+    public static final int FULL_ROW_MASK = (1 << Board.NUM_COLS) - 1;
+    public static final int FULL_COLUMN_MASK = (1 << Board.NUM_ROWS) - 1;
+
+    // the background board
+    private final int[]     rowMasks;
+    private final int[]     columnMasks;
+    private final int[]     columnHeights;      // Board.NUM_ROWS - (y of the top filled cell), 0 if empty
+    private int             heightSum;
+    private int             maxHeight;
+    private int             numHoles;           // empty cells below the top filled cell of their column
+    private int             wellDepthSum;       // sum over columns of how far they sit below both neighbors
+    private int             bumpiness;          // sum of |height difference| of neighboring columns
+    private int             numFullRows;
+    private int             occupiedColumnsMask;
+
+    // the placed mino (only the touched columns are ever nonzero)
+    private final int[]     placedColumnMasks;
+    private final int[]     touchedColumns;
+    private int             numTouchedColumns;
+    private int             placedOccupiedColumnsMask;
+
+    public BoardAnalysis()
+    {
+        this.rowMasks = new int[Board.NUM_ROWS];
+        this.columnMasks = new int[Board.NUM_COLS];
+        this.columnHeights = new int[Board.NUM_COLS];
+        this.placedColumnMasks = new int[Board.NUM_COLS];
+        this.touchedColumns = new int[Board.NUM_COLS];
+    }
+
+    public BoardAnalysis(Board board)
+    {
+        this();
+        this.analyze(board);
+    }
+
+    // (re)load the bitboard from board and recompute everything
+    public void analyze(Board board)
+    {
+        Block[][] grid = board.getBoard();
+        int occupiedColumnsMask = 0;
+        for(int y = 0; y < Board.NUM_ROWS; ++y)
+        {
+            int rowMask = 0;
+            for(int x = 0; x < Board.NUM_COLS; ++x)
+            {
+                if(grid[y][x] != null)
+                {
+                    rowMask |= 1 << x;
+                }
+            }
+            this.rowMasks[y] = rowMask;
+            occupiedColumnsMask |= rowMask;
+        }
+        this.occupiedColumnsMask = occupiedColumnsMask;
+
+        // transpose the row masks into column masks
+        for(int x = 0; x < Board.NUM_COLS; ++x)
+        {
+            this.columnMasks[x] = 0;
+        }
+        int numFullRows = 0;
+        for(int y = 0; y < Board.NUM_ROWS; ++y)
+        {
+            int rowMask = this.rowMasks[y];
+            if(rowMask == FULL_ROW_MASK)
+            {
+                numFullRows += 1;
+            }
+            while(rowMask != 0)
+            {
+                int x = Integer.numberOfTrailingZeros(rowMask);
+                this.columnMasks[x] |= 1 << y;
+                rowMask &= rowMask - 1;
+            }
+        }
+        this.numFullRows = numFullRows;
+
+        int heightSum = 0;
+        int maxHeight = 0;
+        int numHoles = 0;
+        for(int x = 0; x < Board.NUM_COLS; ++x)
+        {
+            int columnMask = this.columnMasks[x];
+            int height = columnMask == 0 ? 0 : Board.NUM_ROWS - Integer.numberOfTrailingZeros(columnMask);
+            this.columnHeights[x] = height;
+            heightSum += height;
+            maxHeight = Math.max(maxHeight, height);
+            numHoles += height - Integer.bitCount(columnMask);
+        }
+        this.heightSum = heightSum;
+        this.maxHeight = maxHeight;
+        this.numHoles = numHoles;
+
+        int wellDepthSum = 0;
+        int bumpiness = 0;
+        for(int x = 0; x < Board.NUM_COLS; ++x)
+        {
+            int left = x == 0 ? Board.NUM_ROWS : this.columnHeights[x - 1];
+            int right = x == Board.NUM_COLS - 1 ? Board.NUM_ROWS : this.columnHeights[x + 1];
+            wellDepthSum += Math.max(Math.min(left, right) - this.columnHeights[x], 0);
+            if(x > 0)
+            {
+                bumpiness += Math.abs(this.columnHeights[x] - this.columnHeights[x - 1]);
+            }
+        }
+        this.wellDepthSum = wellDepthSum;
+        this.bumpiness = bumpiness;
+
+        this.clearPlacement();
+    }
+
+    // the background board
+    public final int getRowMask(int y) { return this.rowMasks[y]; }
+    public final int getColumnMask(int x) { return this.columnMasks[x]; }
+    public final int getColumnHeight(int x) { return this.columnHeights[x]; }
+    public final int getRowFillCount(int y) { return Integer.bitCount(this.rowMasks[y]); }
+    public final int getHeightSum() { return this.heightSum; }
+    public final int getMaxHeight() { return this.maxHeight; }
+    public final int getNumHoles() { return this.numHoles; }
+    public final int getWellDepthSum() { return this.wellDepthSum; }
+    public final int getBumpiness() { return this.bumpiness; }
+    public final int getNumFullRows() { return this.numFullRows; }
+    public final boolean isClear() { return this.occupiedColumnsMask == 0; }
+
+    // empty cells above the top filled cell of every column (i.e. the open sky)
+    public final int getNumOpenCells() { return Board.NUM_ROWS * Board.NUM_COLS - this.getHeightSum(); }
+
+    private void clearPlacement()
+    {
+        for(int idx = 0; idx < this.numTouchedColumns; ++idx)
+        {
+            this.placedColumnMasks[this.touchedColumns[idx]] = 0;
+        }
+        this.numTouchedColumns = 0;
+        this.placedOccupiedColumnsMask = this.occupiedColumnsMask;
+    }
+
+    /**
+     * Add mino to the background board (forgetting whatever was placed before). Cells of the mino that are out of
+     * bounds don't count.
+     */
+    public void place(Mino mino)
+    {
+        this.clearPlacement();
+        for(Block block : mino.getBlocks())
+        {
+            Coordinate coord = block.getCoordinate();
+            int x = coord.getXCoordinate();
+            int y = coord.getYCoordinate();
+            if(x < 0 || x >= Board.NUM_COLS || y < 0 || y >= Board.NUM_ROWS)
+            {
+                continue;
+            }
+
+            if(this.placedColumnMasks[x] == 0)
+            {
+                this.touchedColumns[this.numTouchedColumns++] = x;
+            }
+            this.placedColumnMasks[x] |= 1 << y;
+            this.placedOccupiedColumnsMask |= 1 << x;
+        }
+    }
+
+    // the background board + the placed mino
+    public int getPlacedColumnMask(int x) { return this.columnMasks[x] | this.placedColumnMasks[x]; }
+    public boolean isPlacedColumnFull(int x) { return this.getPlacedColumnMask(x) == FULL_COLUMN_MASK; }
+
+    // -1 if there is nothing on the board
+    public int getPlacedLastFilledColumn() { return 31 - Integer.numberOfLeadingZeros(this.placedOccupiedColumnsMask); }
+}
@@ -0,0 +1,243 @@
+package src.pas.tetris.agents;
+
+
+// SYSTEM IMPORTS
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.pas.tetris.linalg.Matrix;
+import edu.bu.pas.tetris.training.data.Dataset;
+import edu.bu.pas.tetris.utils.Pair;
+
+
+/**
+ * The training data of a cycle with duplicates collapsed. Our q-function input is a handful of hand-crafted
+ * features of the (state, placement) pair, so many transitions produce the exact same row. Every distinct row is
+ * kept once, keyed by its values, together with how many times it showed up and the running mean of its targets
+ * (r + gamma * max_a' Q(s', a') of each occurrence).
+ *
+ * An epoch draws as many rows as there are distinct ones, each with probability proportional to its count. In
+ * expectation that is the same gradient as an epoch over every raw row (a row seen k times with targets y_1..y_k
+ * contributes k * (Q - mean(y))^2 up to a constant), but memory and the cost of an epoch scale with the number of
+ * distinct rows instead of the number of placements played.
+ */
+public class DedupReplayStore
+    extends Object
+{
+    // a distinct q-function input (compared by value)
+    private static class Features
+        extends Object
+    {
+        private final double[]  values;
+        private final int       hash;
+
+        public Features(double[] values)
+        {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        public final double[] getValues() { return this.values; }
+
+        @Override
+        public int hashCode() { return this.hash; }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Features
+                && ((Features)other).hash == this.hash
+                && Arrays.equals(((Features)other).values, this.values);
+        }
+    }
+
+    private static class Experience
+        extends Object
+    {
+        private final Features  features;
+        private final double[]  meanTarget;
+        private long            count;
+
+        public Experience(Features features,
+                          int targetDim)
+        {
+            this.features = features;
+            this.meanTarget = new double[targetDim];
+            this.count = 0;
+        }
+
+        public final Features getFeatures() { return this.features; }
+        public final double[] getMeanTarget() { return this.meanTarget; }
+        public final long getCount() { return this.count; }
+
+        public void add(double[] target)
+        {
+            this.count += 1;
+            for(int cIdx = 0; cIdx < this.meanTarget.length; ++cIdx)
+            {
+                this.meanTarget[cIdx] += (target[cIdx] - this.meanTarget[cIdx]) / this.count;
+            }
+        }
+    }
+
+    private final Map<Features, Experience>     index;
+    private final List<Experience>              experiences;
+    private long                                numSamples;
+    private long[]                              cumulativeCounts;   // built lazily for sampling
+
+    public DedupReplayStore()
+    {
+        this.index = new HashMap<Features, Experience>();
+        this.experiences = new ArrayList<Experience>();
+        this.numSamples = 0;
+        this.cumulativeCounts = null;
+    }
+
+    private Map<Features, Experience> getIndex() { return this.index; }
+    private List<Experience> getExperiences() { return this.experiences; }
+
+    // number of distinct rows
+    public final int size() { return this.getExperiences().size(); }
+
+    // number of rows added (duplicates included)
+    public final long getNumSamples() { return this.numSamples; }
+
+    public void add(double[] features,
+                    double[] target)
+    {
+        Features key = new Features(features);
+        Experience experience = this.getIndex().get(key);
+        if(experience == null)
+        {
+            experience = new Experience(key, target.length);
+            this.getIndex().put(key, experience);
+            this.getExperiences().add(experience);
+        }
+        experience.add(target);
+        this.numSamples += 1;
+        this.cumulativeCounts = null;
+    }
+
+    /**
+     * Every row of dataset. Dataset's BatchIterator slices batch i as rows [batchSize * i, (batchSize + 1) * i),
+     * so iterating a Dataset only ever sees a fraction of it. Instead we read the full X and YGt through Dataset's
+     * (protected) getters.
+     */
+    public void addAll(Dataset dataset)
+    {
+        Matrix X = null;
+        Matrix YGt = null;
+        try
+        {
+            Method getFullX = Dataset.class.getDeclaredMethod("getFullX");
+            Method getFullYGt = Dataset.class.getDeclaredMethod("getFullYGt");
+            getFullX.setAccessible(true);
+            getFullYGt.setAccessible(true);
+            X = (Matrix)getFullX.invoke(dataset);
+            YGt = (Matrix)getFullYGt.invoke(dataset);
+        } catch(Exception e)
+        {
+            System.err.println("[ERROR] DedupReplayStore.addAll: unable to read the rows of the dataset");
+            e.printStackTrace();
+            System.exit(-1);
+        }
+
+        for(int rIdx = 0; rIdx < X.getShape().getNumRows(); ++rIdx)
+        {
+            double[] features = new double[X.getShape().getNumCols()];
+            for(int cIdx = 0; cIdx < features.length; ++cIdx)
+            {
+                features[cIdx] = X.get(rIdx, cIdx);
+            }
+            double[] target = new double[YGt.getShape().getNumCols()];
+            for(int cIdx = 0; cIdx < target.length; ++cIdx)
+            {
+                target[cIdx] = YGt.get(rIdx, cIdx);
+            }
+            this.add(features, target);
+        }
+    }
+
+    private long[] getCumulativeCounts()
+    {
+        if(this.cumulativeCounts == null)
+        {
+            this.cumulativeCounts = new long[this.size()];
+            long total = 0;
+            for(int eIdx = 0; eIdx < this.size(); ++eIdx)
+            {
+                total += this.getExperiences().get(eIdx).getCount();
+                this.cumulativeCounts[eIdx] = total;
+            }
+        }
+        return this.cumulativeCounts;
+    }
+
+    // a distinct row drawn with probability count / numSamples
+    private Experience sample(Random random)
+    {
+        long[] cumulativeCounts = this.getCumulativeCounts();
+        long draw = (long)(random.nextDouble() * this.getNumSamples());
+
+        // first experience whose cumulative count is > draw
+        int lo = 0;
+        int hi = cumulativeCounts.length - 1;
+        while(lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if(cumulativeCounts[mid] > draw)
+            {
+                hi = mid;
+            } else
+            {
+                lo = mid + 1;
+            }
+        }
+        return this.getExperiences().get(lo);
+    }
+
+    /**
+     * One epoch: size() rows drawn (with replacement) proportionally to their counts, in (X, YGt) minibatches of
+     * at most batchSize rows.
+     */
+    public List<Pair<Matrix, Matrix> > sampleEpoch(long batchSize,
+                                                   Random random)
+    {
+        List<Pair<Matrix, Matrix> > batches = new ArrayList<Pair<Matrix, Matrix> >();
+        if(this.size() == 0)
+        {
+            return batches;
+        }
+
+        int featureDim = this.getExperiences().get(0).getFeatures().getValues().length;
+        int targetDim = this.getExperiences().get(0).getMeanTarget().length;
+        for(long startIdx = 0; startIdx < this.size(); startIdx += batchSize)
+        {
+            int numRows = (int)Math.min(batchSize, this.size() - startIdx);
+            Matrix X = Matrix.zeros(numRows, featureDim);
+            Matrix YGt = Matrix.zeros(numRows, targetDim);
+            for(int rIdx = 0; rIdx < numRows; ++rIdx)
+            {
+                Experience experience = this.sample(random);
+                double[] features = experience.getFeatures().getValues();
+                for(int cIdx = 0; cIdx < featureDim; ++cIdx)
+                {
+                    X.set(rIdx, cIdx, features[cIdx]);
+                }
+                for(int cIdx = 0; cIdx < targetDim; ++cIdx)
+                {
+                    YGt.set(rIdx, cIdx, experience.getMeanTarget()[cIdx]);
+                }
+            }
+            batches.add(new Pair<Matrix, Matrix>(X, YGt));
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,270 @@
+package src.pas.tetris.agents;
+
+
+// SYSTEM IMPORTS
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.pas.tetris.linalg.Matrix;
+import edu.bu.pas.tetris.nn.LossFunction;
+import edu.bu.pas.tetris.nn.Model;
+import edu.bu.pas.tetris.nn.Optimizer;
+import edu.bu.pas.tetris.nn.Parameter;
+import edu.bu.pas.tetris.utils.Pair;
+
+
+/**
+ * Data-parallel training of the agent's q-function. Every thread owns a replica of the q-function (built with
+ * initQFunction, since layers remember their inputs between forward and backwards and can't be shared).
+ *
+ * Synchronous (the default): every minibatch is split into one contiguous shard per thread. Each thread copies the
+ * q-function's weights into its replica, then runs forward and backwards on its shard. Each shard's loss gradient is
+ * scaled by shardSize / batchSize, so the shard gradients add up to the gradient of the whole minibatch. The
+ * per-replica gradients are summed pairwise in a tree (log2(numThreads) parallel rounds, no locks), handed to the
+ * q-function's parameters, and the optimizer takes its usual single step. Up to floating point this is the same
+ * update as the single threaded loop.
+ *
+ * Hogwild: threads pull whole minibatches off a shared counter. Each one copies the (possibly half updated) weights
+ * into its replica, computes the gradient, and writes w -= lr * clip(grad) straight into the q-function's weights
+ * without any locking. These updates bypass the optimizer, so they are plain SGD with the optimizer's learning rate
+ * and clip values (Adam's moments are not used).
+ */
+public class ParallelTrainer
+    extends Object
+{
+    private final TetrisQAgent      qAgent;
+    private final boolean           isHogwild;
+    private final List<Model>       replicas;
+    private final ExecutorService   executor;
+
+    public ParallelTrainer(TetrisQAgent qAgent,
+                           int numThreads,
+                           boolean isHogwild)
+    {
+        this.qAgent = qAgent;
+        this.isHogwild = isHogwild;
+        this.replicas = new ArrayList<Model>(numThreads);
+        for(int tIdx = 0; tIdx < numThreads; ++tIdx)
+        {
+            this.replicas.add(qAgent.initQFunction());
+        }
+        this.executor = Executors.newFixedThreadPool(numThreads, runnable ->
+        {
+            Thread thread = new Thread(runnable, "tetris-trainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public final TetrisQAgent getQAgent() { return this.qAgent; }
+    public final boolean isHogwild() { return this.isHogwild; }
+    public final int getNumThreads() { return this.replicas.size(); }
+    private List<Model> getReplicas() { return this.replicas; }
+    private ExecutorService getExecutor() { return this.executor; }
+
+    public void trainEpoch(Iterator<Pair<Matrix, Matrix> > batchIterator,
+                           LossFunction lossFunction,
+                           Optimizer optimizer)
+    {
+        if(this.isHogwild())
+        {
+            List<Pair<Matrix, Matrix> > batches = new ArrayList<Pair<Matrix, Matrix> >();
+            while(batchIterator.hasNext())
+            {
+                batches.add(batchIterator.next());
+            }
+            this.trainEpochHogwild(batches, lossFunction, optimizer);
+        } else
+        {
+            while(batchIterator.hasNext())
+            {
+                this.trainBatch(batchIterator.next(), lossFunction, optimizer);
+            }
+        }
+    }
+
+    // overwrite the replica's weights with the q-function's (the q-function's matrices are replaced every step)
+    private void copyWeights(Model replica)
+    {
+        List<Parameter> params = this.getQAgent().getQFunction().getParameters();
+        List<Parameter> replicaParams = replica.getParameters();
+        for(int pIdx = 0; pIdx < params.size(); ++pIdx)
+        {
+            Matrix value = params.get(pIdx).getValue();
+            Matrix replicaValue = replicaParams.get(pIdx).getValue();
+            for(int rIdx = 0; rIdx < value.getShape().getNumRows(); ++rIdx)
+            {
+                for(int cIdx = 0; cIdx < value.getShape().getNumCols(); ++cIdx)
+                {
+                    replicaValue.set(rIdx, cIdx, value.get(rIdx, cIdx));
+                }
+            }
+        }
+    }
+
+    // gradient of the loss on X, Y (scaled by lossScale) left in the replica's parameters
+    private static void computeGradient(Model replica,
+                                        Matrix X,
+                                        Matrix Y,
+                                        double lossScale,
+                                        LossFunction lossFunction) throws Exception
+    {
+        for(Parameter param : replica.getParameters())
+        {
+            param.reset();
+        }
+
+        Matrix YHat = replica.forward(X);
+        Matrix dLoss = lossFunction.backwards(YHat, Y);
+        if(lossScale != 1.0)
+        {
+            dLoss = dLoss.emul(Matrix.full(dLoss.getShape().getNumRows(), dLoss.getShape().getNumCols(), lossScale));
+        }
+        replica.backwards(X, dLoss);
+    }
+
+    private void trainBatch(Pair<Matrix, Matrix> batch,
+                            LossFunction lossFunction,
+                            Optimizer optimizer)
+    {
+        Matrix X = batch.getFirst();
+        Matrix Y = batch.getSecond();
+        int numRows = X.getShape().getNumRows();
+        int numShards = Math.min(this.getNumThreads(), numRows);
+
+        optimizer.reset();
+        if(numShards > 0)
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>(numShards);
+            for(int sIdx = 0; sIdx < numShards; ++sIdx)
+            {
+                final Model replica = this.getReplicas().get(sIdx);
+                final int startRow = (int)((long)sIdx * numRows / numShards);
+                final int endRow = (int)((long)(sIdx + 1) * numRows / numShards);
+                futures.add(this.getExecutor().submit(() ->
+                {
+                    this.copyWeights(replica);
+                    computeGradient(replica,
+                                    X.getSlice(startRow, endRow, 0, X.getShape().getNumCols()),
+                                    Y.getSlice(startRow, endRow, 0, Y.getShape().getNumCols()),
+                                    (double)(endRow - startRow) / numRows,
+                                    lossFunction);
+                    return null;
+                }));
+            }
+            waitFor(futures);
+
+            // tree reduction: after the round with stride s, replica i (i a multiple of 2s) holds the sum of
+            // replicas i..i+2s-1
+            for(int stride = 1; stride < numShards; stride *= 2)
+            {
+                futures.clear();
+                for(int sIdx = 0; sIdx + stride < numShards; sIdx += 2 * stride)
+                {
+                    final List<Parameter> into = this.getReplicas().get(sIdx).getParameters();
+                    final List<Parameter> from = this.getReplicas().get(sIdx + stride).getParameters();
+                    futures.add(this.getExecutor().submit(() ->
+                    {
+                        for(int pIdx = 0; pIdx < into.size(); ++pIdx)
+                        {
+                            into.get(pIdx).setGradient(into.get(pIdx).getGradient().add(from.get(pIdx).getGradient()));
+                        }
+                        return null;
+                    }));
+                }
+                waitFor(futures);
+            }
+
+            List<Parameter> params = this.getQAgent().getQFunction().getParameters();
+            List<Parameter> reduced = this.getReplicas().get(0).getParameters();
+            for(int pIdx = 0; pIdx < params.size(); ++pIdx)
+            {
+                params.get(pIdx).setGradient(reduced.get(pIdx).getGradient().copy());
+            }
+        }
+
+        try
+        {
+            optimizer.step();
+        } catch(Exception e)
+        {
+            System.err.println("[ERROR] ParallelTrainer.trainBatch: error caught stepping the optimizer");
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    private void trainEpochHogwild(List<Pair<Matrix, Matrix> > batches,
+                                   LossFunction lossFunction,
+                                   Optimizer optimizer)
+    {
+        final double learningRate = optimizer.getLearningRate();
+        final boolean doClip = optimizer.getLClipValue() != null && optimizer.getRClipValue() != null;
+        final AtomicInteger nextBatchIdx = new AtomicInteger(0);
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(this.getNumThreads());
+        for(Model replica : this.getReplicas())
+        {
+            futures.add(this.getExecutor().submit(() ->
+            {
+                List<Parameter> params = this.getQAgent().getQFunction().getParameters();
+                List<Parameter> replicaParams = replica.getParameters();
+
+                int bIdx = 0;
+                while((bIdx = nextBatchIdx.getAndIncrement()) < batches.size())
+                {
+                    Pair<Matrix, Matrix> batch = batches.get(bIdx);
+                    if(batch.getFirst().getShape().getNumRows() == 0)
+                    {
+                        continue;
+                    }
+
+                    this.copyWeights(replica);
+                    computeGradient(replica, batch.getFirst(), batch.getSecond(), 1.0, lossFunction);
+
+                    for(int pIdx = 0; pIdx < params.size(); ++pIdx)
+                    {
+                        Matrix value = params.get(pIdx).getValue();
+                        Matrix gradient = replicaParams.get(pIdx).getGradient();
+                        if(doClip)
+                        {
+                            gradient = Matrix.clip(gradient, optimizer.getLClipValue(), optimizer.getRClipValue());
+                        }
+                        for(int rIdx = 0; rIdx < value.getShape().getNumRows(); ++rIdx)
+                        {
+                            for(int cIdx = 0; cIdx < value.getShape().getNumCols(); ++cIdx)
+                            {
+                                value.set(rIdx, cIdx, value.get(rIdx, cIdx) - learningRate * gradient.get(rIdx, cIdx));
+                            }
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        waitFor(futures);
+    }
+
+    private static void waitFor(List<Future<?>> futures)
+    {
+        try
+        {
+            for(Future<?> future : futures)
+            {
+                future.get();
+            }
+        } catch(Exception e)
+        {
+            System.err.println("[ERROR] ParallelTrainer.waitFor: error caught while training");
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package src.pas.tetris.agents;
+
+
+// SYSTEM IMPORTS
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+
+// JAVA PROJECT IMPORTS
+import edu.bu.pas.tetris.agents.Agent;
+import edu.bu.pas.tetris.agents.TrainerAgent.GameCounter;
+import edu.bu.pas.tetris.game.Game;
+import edu.bu.pas.tetris.game.Game.GameView;
+import edu.bu.pas.tetris.game.minos.Mino;
+import edu.bu.pas.tetris.linalg.Matrix;
+import edu.bu.pas.tetris.nn.Parameter;
+import edu.bu.pas.tetris.training.data.Dataset;
+import edu.bu.pas.tetris.training.data.ReplayBuffer;
+import edu.bu.pas.tetris.training.data.ReplayBuffer.ReplacementType;
+import edu.bu.pas.tetris.utils.Pair;
+
+
+/**
+ * Plays extra training games in parallel. Every worker thread owns a clone of the agent (its own copy of the
+ * q-function, Random, exploration prob and reward state) and plays its own edu.bu.pas.tetris.game.Game with it,
+ * exactly like the TrainerAgent plays a training game: epsilon-greedy moves, and a (state+action, reward, next
+ * state) transition per move plus a terminal one at the end of the game.
+ *
+ * Workers push their transitions into a concurrent queue which the calling thread drains into this collector's
+ * ReplayBuffer while the games are still being played, so only the calling thread ever touches the buffer (or the
+ * real agent). Games are independent of each other, so throughput scales with the number of workers (up to the
+ * number of cores).
+ *
+ * The TrainerAgent that plays the normal training games is part of the tetris jar, so collect() is called from
+ * TetrisQAgent.trainQFunction (once per cycle, right before the q-function is updated).
+ */
+public class SelfPlayCollector
+    extends Object
+{
+    // a transition played by a worker (nextState is null at the end of a game)
+    private static class Transition
+        extends Object
+    {
+        private final Matrix    stateAndAction;
+        private final double    reward;
+        private final GameView  nextState;
+
+        public Transition(Matrix stateAndAction,
+                          double reward,
+                          GameView nextState)
+        {
+            this.stateAndAction = stateAndAction;
+            this.reward = reward;
+            this.nextState = nextState;
+        }
+
+        public final Matrix getStateAndAction() { return this.stateAndAction; }
+        public final double getReward() { return this.reward; }
+        public final GameView getNextState() { return this.nextState; }
+    }
+
+    // what the TrainerAgent does during a training game, for one clone
+    private static class SelfPlayAgent
+        extends Agent
+    {
+        private final TetrisQAgent                              qAgent;
+        private final Random                                    random;
+        private final ConcurrentLinkedQueue<Transition>         transitions;
+        private final GameCounter                               gameCounter;
+        private Matrix                                          pastStateAndAction;
+
+        public SelfPlayAgent(TetrisQAgent qAgent,
+                             Random random,
+                             ConcurrentLinkedQueue<Transition> transitions,
+                             Namespace ns)
+        {
+            super(qAgent.getName());
+            this.qAgent = qAgent;
+            this.random = random;
+            this.transitions = transitions;
+            this.gameCounter = new GameCounter(ns);
+            this.pastStateAndAction = null;
+        }
+
+        public final TetrisQAgent getQAgent() { return this.qAgent; }
+        public final Random getRandom() { return this.random; }
+        private ConcurrentLinkedQueue<Transition> getTransitions() { return this.transitions; }
+        public final GameCounter getGameCounter() { return this.gameCounter; }
+
+        @Override
+        public void initialize(Namespace ns) {}
+
+        @Override
+        public Mino makeMove(GameView game)
+        {
+            Mino move = null;
+            if(this.getQAgent().shouldExplore(game, new GameCounter(this.getGameCounter())))
+            {
+                move = this.getQAgent().getExplorationMove(game);
+            } else
+            {
+                move = this.getQAgent().getBestActionAndQValue(game).getFirst();
+            }
+
+            Matrix stateAndAction = this.getQAgent().getQFunctionInput(game, move);
+            if(this.pastStateAndAction != null)
+            {
+                this.getTransitions().add(new Transition(this.pastStateAndAction,
+                                                         this.getQAgent().getReward(game),
+                                                         game));
+            }
+            this.pastStateAndAction = stateAndAction;
+            this.getGameCounter().nextMove();
+            return move;
+        }
+
+        @Override
+        public void onGameEnd(GameView game)
+        {
+            if(this.pastStateAndAction != null)
+            {
+                this.getTransitions().add(new Transition(this.pastStateAndAction,
+                                                         this.getQAgent().getReward(game),
+                                                         null));
+            }
+            this.pastStateAndAction = null;
+            this.getGameCounter().nextGame();
+        }
+
+        public void playGames(long cycleIdx,
+                              int numGames,
+                              int maxMinoLength)
+        {
+            this.getGameCounter().setCurrentCycleIdx(cycleIdx);
+            for(int gIdx = 0; gIdx < numGames; ++gIdx)
+            {
+                Game game = new Game(Game.createRandomMinosInGame(this.getRandom(), maxMinoLength), this);
+                while(!game.isOver())
+                {
+                    game.update();
+                }
+            }
+        }
+    }
+
+    private final TetrisQAgent                          qAgent;
+    private final Namespace                             ns;
+    private final int                                   numGamesPerWorker;
+    private final double                                gamma;
+    private final int                                   maxMinoLength;
+
+    private final List<SelfPlayAgent>                   workers;
+    private final ExecutorService                       executor;
+    private final ConcurrentLinkedQueue<Transition>     transitions;
+    private final ReplayBuffer                          replayBuffer;
+    private final Random                                datasetRandom;
+
+    public SelfPlayCollector(TetrisQAgent qAgent,
+                             Namespace ns,
+                             int numWorkers,
+                             int numGamesPerWorker)
+    {
+        this.qAgent = qAgent;
+        this.ns = ns;
+        this.numGamesPerWorker = numGamesPerWorker;
+        this.gamma = ns.getDouble("gamma");
+        this.maxMinoLength = ns.getInt("maxMinoLength");
+
+        // one independent stream per worker (and one for shuffling the dataset), reproducible if --seed was given
+        SplittableRandom seeds = ns.get("seed") instanceof Long
+            ? new SplittableRandom(ns.getLong("seed"))
+            : new SplittableRandom();
+        this.datasetRandom = new Random(seeds.nextLong());
+
+        this.transitions = new ConcurrentLinkedQueue<Transition>();
+        this.workers = new ArrayList<SelfPlayAgent>(numWorkers);
+        for(int wIdx = 0; wIdx < numWorkers; ++wIdx)
+        {
+            TetrisQAgent clone = new TetrisQAgent(qAgent.getName() + "-selfplay-" + wIdx, new Random(seeds.nextLong()));
+            clone.initialize(ns);
+            this.workers.add(new SelfPlayAgent(clone, new Random(seeds.nextLong()), this.transitions, ns));
+        }
+
+        this.replayBuffer = new ReplayBuffer((ReplacementType)ns.get("replacementType"),
+                                             ns.getInt("maxBufferSize"),
+                                             seeds.nextLong());
+
+        this.executor = Executors.newFixedThreadPool(numWorkers, runnable ->
+        {
+            Thread thread = new Thread(runnable, "tetris-selfplay");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public final TetrisQAgent getQAgent() { return this.qAgent; }
+    public final int getNumWorkers() { return this.workers.size(); }
+    public final int getNumGamesPerWorker() { return this.numGamesPerWorker; }
+    public final ReplayBuffer getReplayBuffer() { return this.replayBuffer; }
+    private List<SelfPlayAgent> getWorkers() { return this.workers; }
+    private ExecutorService getExecutor() { return this.executor; }
+    private ConcurrentLinkedQueue<Transition> getTransitions() { return this.transitions; }
+
+    // copy the agent's current q-function and exploration prob into every clone
+    private void syncWorkers(long cycleIdx)
+    {
+        List<Parameter> params = this.getQAgent().getQFunction().getParameters();
+        for(SelfPlayAgent worker : this.getWorkers())
+        {
+            List<Parameter> cloneParams = worker.getQAgent().getQFunction().getParameters();
+            for(int pIdx = 0; pIdx < params.size(); ++pIdx)
+            {
+                Matrix value = params.get(pIdx).getValue();
+                Matrix cloneValue = cloneParams.get(pIdx).getValue();
+                for(int rIdx = 0; rIdx < value.getShape().getNumRows(); ++rIdx)
+                {
+                    for(int cIdx = 0; cIdx < value.getShape().getNumCols(); ++cIdx)
+                    {
+                        cloneValue.set(rIdx, cIdx, value.get(rIdx, cIdx));
+                    }
+                }
+            }
+            worker.getQAgent().syncExplorationState(this.getQAgent(), cycleIdx);
+        }
+    }
+
+    private void drainTransitions()
+    {
+        Transition transition = null;
+        while((transition = this.getTransitions().poll()) != null)
+        {
+            this.getReplayBuffer().addSample(transition.getStateAndAction(),
+                                             transition.getReward(),
+                                             transition.getNextState());
+        }
+    }
+
+    /**
+     * Have every worker play numGamesPerWorker games (in parallel) with the agent's current q-function and
+     * return the training data (targets computed with the agent's q-function) of the collector's replay buffer.
+     */
+    public Dataset collect(long cycleIdx)
+    {
+        this.syncWorkers(cycleIdx);
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(this.getNumWorkers());
+        for(SelfPlayAgent worker : this.getWorkers())
+        {
+            futures.add(this.getExecutor().submit(() ->
+                worker.playGames(cycleIdx, this.getNumGamesPerWorker(), this.maxMinoLength)));
+        }
+
+        try
+        {
+            for(Future<?> future : futures)
+            {
+                while(!future.isDone())
+                {
+                    this.drainTransitions();
+                    Thread.sleep(1);
+                }
+                future.get();
+            }
+        } catch(Exception e)
+        {
+            System.err.println("[ERROR] SelfPlayCollector.collect: error caught playing self-play games");
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        this.drainTransitions();
+
+        Pair<Matrix, Matrix> trainingData = this.getReplayBuffer().getTrainingData(this.getQAgent(), this.gamma);
+        return new Dataset(trainingData.getFirst(),
+                           trainingData.getSecond(),
+                           this.ns.getInt("miniBatchSize"),
+                           this.datasetRandom);
+    }
+}
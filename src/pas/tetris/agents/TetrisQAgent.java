@@ -8,6 +8,7 @@ import java.util.Random;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import net.sourceforge.argparse4j.inf.Namespace;
 
 // JAVA PROJECT IMPORTS
 import edu.bu.pas.tetris.agents.QAgent;
@@ -15,7 +16,6 @@ import edu.bu.pas.tetris.agents.TrainerAgent.GameCounter;
 import edu.bu.pas.tetris.game.Board;
 import edu.bu.pas.tetris.game.Game.GameView;
 import edu.bu.pas.tetris.game.Block;
-import java.util.Arrays;
 import edu.bu.pas.tetris.game.minos.Mino;
 import edu.bu.pas.tetris.linalg.Matrix;
 import edu.bu.pas.tetris.nn.Model;
@@ -34,21 +34,107 @@ public class TetrisQAgent
     extends QAgent
 {
 
+    public static final int NUM_FEATURES = 9;
     public static final double EXPLORATION_PROB = 0.25;
     public static final double EXPLORATION_DECREASE_GAMMA = 0.95;
     public double currentExplorationProb = EXPLORATION_PROB;
     private long lastCycleIdx = -1;      // Remember last cycle idx so we only decay once per cycle:
 
+    // parallel self-play (see SelfPlayCollector): every cycle, before training, each of SELF_PLAY_NUM_WORKERS
+    // threads plays SELF_PLAY_GAMES_PER_WORKER extra training games. 0 workers turns it off, -1 uses every core
+    public static final int SELF_PLAY_NUM_WORKERS = 0;
+    public static final int SELF_PLAY_GAMES_PER_WORKER = 2;
+
+    // lookahead for eval moves (see BeamSearchPlanner): PLANNER_DEPTH placements deep (the current mino + up to
+    // 2 preview minos, 1 turns it off), keeping the PLANNER_BEAM_WIDTH best at each depth, and giving up on
+    // deeper levels after PLANNER_TIME_BUDGET_MS. 0 threads uses every core
+    public static final int PLANNER_DEPTH = 1;
+    public static final int PLANNER_BEAM_WIDTH = 8;
+    public static final long PLANNER_TIME_BUDGET_MS = 50;
+    public static final int PLANNER_NUM_THREADS = 0;
+
+    // train on the distinct (features, mean target) rows of a cycle's data instead of every raw row
+    public static final boolean DEDUP_REPLAY = false;
+
+    // data-parallel training (see ParallelTrainer): 0 threads uses every core, 1 is the plain single threaded loop.
+    // PARALLEL_TRAIN_HOGWILD swaps the synchronous sharded minibatches for lock-free asynchronous SGD
+    public static final int PARALLEL_TRAIN_NUM_THREADS = 0;
+    public static final boolean PARALLEL_TRAIN_HOGWILD = false;
+
     private Random random;
+    private Namespace namespace = null;
+    private SelfPlayCollector selfPlayCollector = null;
+    private BeamSearchPlanner planner = null;
+    private ParallelTrainer parallelTrainer = null;
+
+    // the TrainerAgent asks shouldExplore before every training move and nothing between training the q-function
+    // and the next training game, so in between (and before any training) we are playing eval games
+    private boolean isEvaluating = true;
 
     public TetrisQAgent(String name)
+    {
+        this(name, new Random(12345)); // optional to have a seed
+    }
+
+    public TetrisQAgent(String name, Random random)
     {
         super(name);
-        this.random = new Random(12345); // optional to have a seed
+        this.random = random;
     }
 
     public Random getRandom() { return this.random; }
 
+    @Override
+    public void initialize(Namespace ns)
+    {
+        super.initialize(ns);
+        this.namespace = ns;
+    }
+
+    // created on first use so that only the agent the TrainerAgent trains (and not the clones) has one
+    private SelfPlayCollector getSelfPlayCollector()
+    {
+        if (this.selfPlayCollector == null) {
+            int numWorkers = SELF_PLAY_NUM_WORKERS < 0
+                ? Runtime.getRuntime().availableProcessors()
+                : SELF_PLAY_NUM_WORKERS;
+            this.selfPlayCollector = new SelfPlayCollector(this, this.namespace, numWorkers,
+                                                           SELF_PLAY_GAMES_PER_WORKER);
+        }
+        return this.selfPlayCollector;
+    }
+
+    private BeamSearchPlanner getPlanner()
+    {
+        if (this.planner == null) {
+            int numThreads = PLANNER_NUM_THREADS <= 0
+                ? Runtime.getRuntime().availableProcessors()
+                : PLANNER_NUM_THREADS;
+            this.planner = new BeamSearchPlanner(this, PLANNER_DEPTH, PLANNER_BEAM_WIDTH, PLANNER_TIME_BUDGET_MS,
+                                                 numThreads);
+        }
+        return this.planner;
+    }
+
+    // null when training single threaded
+    private ParallelTrainer getParallelTrainer()
+    {
+        int numThreads = PARALLEL_TRAIN_NUM_THREADS <= 0
+            ? Runtime.getRuntime().availableProcessors()
+            : PARALLEL_TRAIN_NUM_THREADS;
+        if (this.parallelTrainer == null && (numThreads > 1 || PARALLEL_TRAIN_HOGWILD)) {
+            this.parallelTrainer = new ParallelTrainer(this, numThreads, PARALLEL_TRAIN_HOGWILD);
+        }
+        return this.parallelTrainer;
+    }
+
+    // a self-play clone explores like other does during cycle cycleIdx
+    public void syncExplorationState(final TetrisQAgent other, final long cycleIdx)
+    {
+        this.currentExplorationProb = other.currentExplorationProb;
+        this.lastCycleIdx = cycleIdx;
+    }
+
     @Override
     public Model initQFunction()
     {
@@ -64,7 +150,7 @@ public class TetrisQAgent
         final int outDim = 1;
 
         Sequential qFunction = new Sequential();
-        qFunction.add(new Dense(9, hiddenDimOne));
+        qFunction.add(new Dense(NUM_FEATURES, hiddenDimOne));
         qFunction.add(new ReLU());
         qFunction.add(new Dense(hiddenDimOne, hiddenDimTwo));
         qFunction.add(new Tanh());
@@ -77,6 +163,20 @@ public class TetrisQAgent
         return qFunction;
     }
 
+    // bitboard analysis of the last board we were asked about (a GameView's board never changes), shared by the
+    // features and the reward
+    private GameView analyzedGame = null;
+    private final BoardAnalysis boardAnalysis = new BoardAnalysis();
+
+    private BoardAnalysis getBoardAnalysis(final GameView game)
+    {
+        if (game != this.analyzedGame) {
+            this.boardAnalysis.analyze(game.getBoard());
+            this.analyzedGame = game;
+        }
+        return this.boardAnalysis;
+    }
+
     /**
         This function is for you to figure out what your features
         are. This should end up being a single row-vector, and the
@@ -96,50 +196,45 @@ public class TetrisQAgent
     public Matrix getQFunctionInput(final GameView game,
                                     final Mino potentialAction)
     {
-        int numQEntries = 9;
-        Matrix qInput = Matrix.zeros(numQEntries, 1);
+        Matrix qInput = Matrix.zeros(1, NUM_FEATURES);
+        this.setQFunctionInput(game, potentialAction, qInput, 0);
+        return qInput;
+    }
+
+    // write the features of potentialAction into row rowIdx of qInputs (so a whole turn can go in one matrix)
+    private void setQFunctionInput(final GameView game,
+                                   final Mino potentialAction,
+                                   final Matrix qInputs,
+                                   final int rowIdx)
+    {
+        // the background board is the same for every candidate this turn, so it is only analyzed once per turn
+        setQFunctionInput(game, this.getBoardAnalysis(game), potentialAction, qInputs, rowIdx);
+    }
 
+    // same as above given an analysis of game's board (so other threads can bring their own)
+    static void setQFunctionInput(final GameView game,
+                                  final BoardAnalysis analysis,
+                                  final Mino potentialAction,
+                                  final Matrix qInputs,
+                                  final int rowIdx)
+    {
         // 0 score values
-        qInput.set(0, 0, game.getTotalScore());
+        qInputs.set(rowIdx, 0, game.getTotalScore());
 
-        // grab and orient the image
-        Matrix flattenedImage;
-        try {
-            flattenedImage = game.getGrayscaleImage(potentialAction);
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(-1);
-            return qInput; // unreachable
-        }
-        Matrix oriented = flattenedImage.transpose();
-        int numRows = oriented.getShape().getNumRows();
-        int numCols = oriented.getShape().getNumCols();
+        // Features 1-4 used to be read off of the transposed grayscale image (board + candidate), whose rows are
+        // the board's columns, so "height" is the last column with anything in it and "filled rows" are full columns
+        analysis.place(potentialAction);
 
         // 1: maximum height
-        int maxHeight = 0;
-        for (int i = 0; i < numRows; i++) {
-            for (int j = 0; j < numCols; j++) {
-                if (oriented.get(i, j) >= 0.5) {
-                    maxHeight = i;
-                    break;
-                }
-            }
-        }
-        qInput.set(1, 0, maxHeight);
+        int maxHeight = Math.max(analysis.getPlacedLastFilledColumn(), 0);
+        qInputs.set(rowIdx, 1, maxHeight);
 
         // 2: total number of filled rows, track max consecutive
         int filledRowCount = 0;
         int consecutiveFilled = 0;
         int maxConsecutiveFilled = 0;
-        for (int i = 0; i < numRows; i++) {
-            boolean allFilled = true;
-            for (int j = 0; j < numCols; j++) {
-                if (oriented.get(i, j) < 0.5) {
-                    allFilled = false;
-                    break;
-                }
-            }
-            if (allFilled) {
+        for (int i = 0; i < Board.NUM_COLS; i++) {
+            if (analysis.isPlacedColumnFull(i)) {
                 filledRowCount++;
                 consecutiveFilled++;
                 maxConsecutiveFilled = Math.max(maxConsecutiveFilled, consecutiveFilled);
@@ -147,16 +242,16 @@ public class TetrisQAgent
                 consecutiveFilled = 0;
             }
         }
-        qInput.set(2, 0, filledRowCount);
+        qInputs.set(rowIdx, 2, filledRowCount);
 
         // 3: ≥4 consecutive filled rows?
-        qInput.set(3, 0, maxConsecutiveFilled >= 4 ? 1.0 : 0.0);
+        qInputs.set(rowIdx, 3, maxConsecutiveFilled >= 4 ? 1.0 : 0.0);
 
         // 4: all rows complete (super clear)?
-        qInput.set(4, 0, filledRowCount == maxHeight ? 1.0 : 0.0);
+        qInputs.set(rowIdx, 4, filledRowCount == maxHeight ? 1.0 : 0.0);
 
         // 5: did the agent lose?
-        qInput.set(5, 0, game.didAgentLose() ? 1.0 : 0.0);
+        qInputs.set(rowIdx, 5, game.didAgentLose() ? 1.0 : 0.0);
 
         // 6-8: next three Mino types (enum ordinals)
         List<Mino.MinoType> nextTypes = game.getNextThreeMinoTypes();
@@ -164,10 +259,64 @@ public class TetrisQAgent
             double val = (i < nextTypes.size())
                 ? nextTypes.get(i).ordinal()
                 : 0.0;
-            qInput.set(6 + i, 0, val);
+            qInputs.set(rowIdx, 6 + i, val);
+        }
+    }
+
+    /**
+     * Same choice as QAgent.getBestActionAndQValue (the first placement with the highest q-value), but every
+     * placement of the turn is scored with a single forward pass over a (numPlacements x NUM_FEATURES) matrix
+     * instead of one forward pass per placement.
+     *
+     * With PLANNER_DEPTH > 1, eval moves look ahead with a BeamSearchPlanner instead. Training moves and the
+     * q-value targets of the replay buffer stay greedy.
+     */
+    @Override
+    public Pair<Mino, Double> getBestActionAndQValue(final GameView game)
+    {
+        List<Mino> placements = game.getFinalMinoPositions();
+        if(placements.isEmpty())
+        {
+            System.err.println("[ERROR] TetrisQAgent.getBestActionAndQValue: agent did not pick a move!"
+                + placements.size());
+            System.exit(-1);
+        }
+
+        if(PLANNER_DEPTH > 1 && this.isEvaluating)
+        {
+            return this.getPlanner().plan(game);
+        }
+
+        Matrix qInputs = Matrix.zeros(placements.size(), NUM_FEATURES);
+        for(int pIdx = 0; pIdx < placements.size(); ++pIdx)
+        {
+            this.setQFunctionInput(game, placements.get(pIdx), qInputs, pIdx);
         }
 
-        return qInput.transpose();
+        Matrix qValues = null;
+        try
+        {
+            qValues = this.getQFunction().forward(qInputs);
+            if(qValues.getShape().getNumRows() != placements.size() || qValues.getShape().getNumCols() != 1)
+            {
+                throw new Exception("[ERROR]: TetrisQAgent.getBestActionAndQValue: output of Qfunction should "
+                    + "have shape (" + placements.size() + ",1) but got " + qValues.getShape());
+            }
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+
+        int bestIdx = 0;
+        for(int pIdx = 1; pIdx < placements.size(); ++pIdx)
+        {
+            if(qValues.get(pIdx, 0) > qValues.get(bestIdx, 0))
+            {
+                bestIdx = pIdx;
+            }
+        }
+        return new Pair<Mino, Double>(placements.get(bestIdx), qValues.get(bestIdx, 0));
     }
 
 
@@ -191,6 +340,7 @@ public class TetrisQAgent
                                  final GameCounter gameCounter)
     {
         long cycleIdx = gameCounter.getCurrentCycleIdx();
+        this.isEvaluating = false;
 
         // only decay epsilon when we enter a new cycle:
         if (cycleIdx != lastCycleIdx) {
@@ -232,6 +382,11 @@ public class TetrisQAgent
      *
      * Each pass through the data is called an epoch, and we will perform "numUpdates" amount
      * of epochs in between the training and eval sections of each cycle.
+     *
+     * With self-play turned on, every epoch also makes a pass over the self-play replay buffer.
+     * With DEDUP_REPLAY, duplicate rows are collapsed first and epochs sample the distinct rows by count
+     * (see DedupReplayStore).
+     * Epochs are spread over every core by a ParallelTrainer unless PARALLEL_TRAIN_NUM_THREADS is 1.
      */
     @Override
     public void trainQFunction(Dataset dataset,
@@ -239,30 +394,66 @@ public class TetrisQAgent
                                Optimizer optimizer,
                                long numUpdates)
     {
-        for(int epochIdx = 0; epochIdx < numUpdates; ++epochIdx)
-        {
-            dataset.shuffle();
-            Iterator<Pair<Matrix, Matrix> > batchIterator = dataset.iterator();
-
-            while(batchIterator.hasNext())
-            {
-                Pair<Matrix, Matrix> batch = batchIterator.next();
+        Dataset selfPlayDataset = null;
+        if (SELF_PLAY_NUM_WORKERS != 0 && this.namespace != null) {
+            selfPlayDataset = this.getSelfPlayCollector().collect(this.lastCycleIdx);
+        }
 
-                try
-                {
-                    Matrix YHat = this.getQFunction().forward(batch.getFirst());
+        if (DEDUP_REPLAY) {
+            DedupReplayStore store = new DedupReplayStore();
+            store.addAll(dataset);
+            if (selfPlayDataset != null) {
+                store.addAll(selfPlayDataset);
+            }
 
-                    optimizer.reset();
-                    this.getQFunction().backwards(batch.getFirst(),
-                                                  lossFunction.backwards(YHat, batch.getSecond()));
-                    optimizer.step();
-                } catch(Exception e)
+            for(int epochIdx = 0; epochIdx < numUpdates; ++epochIdx)
+            {
+                this.trainEpoch(store.sampleEpoch(dataset.getBatchSize(), this.getRandom()).iterator(),
+                                lossFunction, optimizer);
+            }
+        } else {
+            for(int epochIdx = 0; epochIdx < numUpdates; ++epochIdx)
+            {
+                dataset.shuffle();
+                this.trainEpoch(dataset.iterator(), lossFunction, optimizer);
+                if(selfPlayDataset != null)
                 {
-                    e.printStackTrace();
-                    System.exit(-1);
+                    selfPlayDataset.shuffle();
+                    this.trainEpoch(selfPlayDataset.iterator(), lossFunction, optimizer);
                 }
             }
         }
+        this.isEvaluating = true;
+    }
+
+    private void trainEpoch(Iterator<Pair<Matrix, Matrix> > batchIterator,
+                            LossFunction lossFunction,
+                            Optimizer optimizer)
+    {
+        if(this.getParallelTrainer() != null)
+        {
+            this.getParallelTrainer().trainEpoch(batchIterator, lossFunction, optimizer);
+            return;
+        }
+
+        while(batchIterator.hasNext())
+        {
+            Pair<Matrix, Matrix> batch = batchIterator.next();
+
+            try
+            {
+                Matrix YHat = this.getQFunction().forward(batch.getFirst());
+
+                optimizer.reset();
+                this.getQFunction().backwards(batch.getFirst(),
+                                              lossFunction.backwards(YHat, batch.getSecond()));
+                optimizer.step();
+            } catch(Exception e)
+            {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
     }
 
     /**
@@ -281,8 +472,8 @@ public class TetrisQAgent
      * signal that is less sparse, you should see your model optimize this reward over time.
      */
 
-    // keep a running record of last column‐heights so we can detect lines cleared & bumpiness change
-    private int[] lastHeights = null;
+    // keep a running record of the last sum of column‐heights so we can detect lines cleared (-1 before the first call)
+    private int lastHeightSum = -1;
 
     @Override
     public double getReward(final GameView game)
@@ -295,32 +486,22 @@ public class TetrisQAgent
         // 2) base reward = raw points this turn + tiny survival bonus
         double reward = game.getScoreThisTurn() + 0.1;
 
-        // 3) grab the board post‐placement
-        Board board = game.getBoard();
-        Block[][] grid = board.getBoard();
-        int numRows = grid.length, numCols = grid[0].length;
-
-        // 4) compute current column heights
-        int[] heights = new int[numCols];
-        for (int c = 0; c < numCols; c++) {
-            for (int r = 0; r < numRows; r++) {
-                if (grid[r][c] != null) {
-                    heights[c] = numRows - r;
-                    break;
-                }
-            }
-        }
+        // 3) analyze the board post‐placement (bitboard, shared with getQFunctionInput)
+        BoardAnalysis analysis = this.getBoardAnalysis(game);
+        int numRows = Board.NUM_ROWS, numCols = Board.NUM_COLS;
+
+        // 4) sum of the current column heights
+        int currSum = analysis.getHeightSum();
 
         // 3.1) bonus for keeping the stack low: normalized inverse average height
-        double avgHeight = Arrays.stream(heights).average().orElse(0.0);
+        double avgHeight = (double)currSum / numCols;
         double heightFactor = ((double)numRows - avgHeight) / numRows;  // 1.0 = totally empty, 0.0 = full height
         // tune the weight to taste (0.2 here is a starting point)
         reward += 0.05 * heightFactor;
 
         // 5) detect line‐clears by total height drop
-        if (lastHeights != null) {
-            int prevSum = Arrays.stream(lastHeights).sum();
-            int currSum = Arrays.stream(heights).sum();
+        if (lastHeightSum >= 0) {
+            int prevSum = lastHeightSum;
             int rowsCleared = prevSum - currSum;  // >0 if lines cleared
 
             if (rowsCleared >= 4) {
@@ -331,23 +512,13 @@ public class TetrisQAgent
         }
 
         // 6) penalize max height & buried holes
-        int maxH = Arrays.stream(heights).max().orElse(0);
-        int holes = 0;
-        for (int c = 0; c < numCols; c++) {
-            boolean seen = false;
-            for (int r = 0; r < numRows; r++) {
-                if (grid[r][c] != null) {
-                    seen = true;
-                } else if (seen) {
-                    holes++;
-                }
-            }
-        }
+        int maxH = analysis.getMaxHeight();
+        int holes = analysis.getNumHoles();
         reward -= 0.1 * maxH;
         reward -= 0.1 * holes;
 
         // 7) perfect‐clear bonus
-        if (board.isClear()) {
+        if (analysis.isClear()) {
             reward += 15.0;
         }
 
@@ -391,25 +562,8 @@ public class TetrisQAgent
         // reward += 0.2 * wellRows;
 
         // 11) count every exposed well-cell:
-        //    for each column, find the first filled cell (topFilled), then
-        //    every null above it is an exposed well cell.
-        int wellCells = 0;
-        for (int c = 0; c < numCols; c++) {
-            // find row index of first block in this column
-            int topFilled = numRows;
-            for (int r = 0; r < numRows; r++) {
-                if (grid[r][c] != null) {
-                    topFilled = r;
-                    break;
-                }
-            }
-            // count all empty cells above it
-            for (int r = 0; r < topFilled; r++) {
-                if (grid[r][c] == null) {
-                    wellCells++;
-                }
-            }
-        }
+        //    for each column, every empty cell above its first filled cell (i.e. the open sky)
+        int wellCells = analysis.getNumOpenCells();
 
 
         // // 12) count rows that have exactly one run of 1 or 2 holes,
@@ -452,7 +606,7 @@ public class TetrisQAgent
         // reward += 1.0 * consecutiveHoleRows;
 
         // 10) roll forward for next call
-        lastHeights = heights;
+        lastHeightSum = currSum;
 
         return reward;
     }